@@ -0,0 +1,500 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs engines repeatedly on generated inputs of fixed seeds and sizes, checks their output and reports the run times
+ * and peak memory as JSON, optionally failing on regressions against a previous report:
+ *
+ * <pre>
+ * Benchmark &lt;engine&gt; [&lt;engine&gt; ...]
+ * </pre>
+ *
+ * Engines are given as {@code baseline}, {@code 5} (for {@code CalculateAverage_5}) or fully qualified class names, and
+ * each run is a fresh JVM on the harness's class path, timed from start to exit like {@code time} would. The input is
+ * passed as the first argument and, for engines which only read {@code ./measurements.txt}, linked there, as
+ * {@code test.sh} does. Options:
+ * <ul>
+ * <li>{@code -Dbench.inputs} (default {@code samples,standard:10000000}): comma-separated inputs, either
+ * {@code samples}, which runs each of {@code src/test/resources/samples} once as an output check without timing, or
+ * {@code <kind>:<rows>} with kind {@code standard} ({@link CreateMeasurements}) or {@code polynomial}, {@code prefix}
+ * and {@code random} ({@link CreateAdversarialMeasurements}). Generated inputs are cached in {@code -Dbench.dir}
+ * (default {@code ./target/bench}), along with their expected output.</li>
+ * <li>{@code -Dbench.seed} (default 42): the seed for generating inputs.</li>
+ * <li>{@code -Dbench.runs} (default 5) and {@code -Dbench.warmup} (default 1): the number of timed and of discarded
+ * runs per engine and input.</li>
+ * <li>{@code -Dbench.jvmArgs} (default {@code --enable-preview --add-modules jdk.incubator.vector}): the engines' JVM
+ * options, space-separated.</li>
+ * <li>{@code -Dbench.timeout} (default 300): seconds after which a run is killed and counted as failed.</li>
+ * <li>{@code -Dbench.results}: the file to write the report to, instead of stdout.</li>
+ * <li>{@code -Dbench.baseline}: a previous report; an engine and input regresses if its median is more than
+ * {@code -Dbench.threshold} (default 0.1, i.e. 10%) above the baseline's.</li>
+ * </ul>
+ * Per engine and input, the report has the single run times and their median, p90, mean, mean without the fastest and
+ * slowest run, standard deviation, min and max in milliseconds, and the peak resident set size in KiB (on Linux, from
+ * polling {@code VmHWM}, so runs of a few milliseconds may be missed; -1 elsewhere). The exit code is 1 if any output was
+ * wrong or any median regressed.
+ */
+public class Benchmark {
+
+    private static final String ENGINE_PREFIX = "dev.morling.onebrc.CalculateAverage_";
+    private static final Path SAMPLES = Path.of("src/test/resources/samples");
+    private static final String COMPLETED = "Solution completed in";
+
+    private final String javaCommand = ProcessHandle.current().info().command().orElse("java");
+    // absolute, as engines run in their own directory
+    private final String classPath = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+            .map(entry -> Path.of(entry).toAbsolutePath().toString())
+            .collect(Collectors.joining(File.pathSeparator));
+    private final List<String> jvmArgs = Arrays.asList(
+            System.getProperty("bench.jvmArgs", "--enable-preview --add-modules jdk.incubator.vector").trim().split("\\s+"));
+    private final Path dir = Path.of(System.getProperty("bench.dir", "./target/bench")).toAbsolutePath();
+    private final Path workDir = dir.resolve("work");
+    private final long seed = Long.getLong("bench.seed", 42);
+    private final int runs = Integer.getInteger("bench.runs", 5);
+    private final int warmup = Integer.getInteger("bench.warmup", 1);
+    private final long timeoutSeconds = Long.getLong("bench.timeout", 300);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: Benchmark <engine> [<engine> ...]");
+            System.exit(1);
+        }
+
+        Benchmark benchmark = new Benchmark();
+        List<String> inputs = Arrays.asList(System.getProperty("bench.inputs", "samples,standard:10000000").split(","));
+        Files.createDirectories(benchmark.workDir);
+
+        List<Check> checks = new ArrayList<>();
+        List<Result> results = new ArrayList<>();
+        for (String input : inputs) {
+            if (input.equals("samples")) {
+                for (String engine : args) {
+                    checks.addAll(benchmark.checkSamples(engine));
+                }
+            }
+            else {
+                Path file = benchmark.generate(input);
+                for (String engine : args) {
+                    results.add(benchmark.measure(engine, input, file));
+                }
+            }
+        }
+
+        String report = benchmark.toJson(checks, results);
+        String resultsFile = System.getProperty("bench.results");
+        if (resultsFile != null) {
+            Files.writeString(Path.of(resultsFile), report);
+        }
+        else {
+            System.out.print(report);
+        }
+
+        boolean failed = checks.stream().anyMatch(c -> !c.ok()) || results.stream().anyMatch(r -> !r.ok());
+        String baselineFile = System.getProperty("bench.baseline");
+        if (baselineFile != null) {
+            failed |= compare(results, Files.readString(Path.of(baselineFile)), Double.parseDouble(System.getProperty("bench.threshold", "0.1")));
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    private record Check(String engine, String input, boolean ok) {
+    }
+
+    private record Result(String engine, String input, boolean ok, long[] timesMillis, long peakRssKib) {
+
+        double median() {
+            long[] sorted = sorted();
+            int n = sorted.length;
+            return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2.0;
+        }
+
+        long p90() {
+            long[] sorted = sorted();
+            return sorted[(int) Math.ceil(0.9 * sorted.length) - 1];
+        }
+
+        double mean() {
+            return Arrays.stream(timesMillis).average().orElse(0);
+        }
+
+        double trimmedMean() {
+            long[] sorted = sorted();
+            if (sorted.length < 3) {
+                return mean();
+            }
+            return Arrays.stream(sorted, 1, sorted.length - 1).average().orElse(0);
+        }
+
+        double stddev() {
+            if (timesMillis.length < 2) {
+                return 0;
+            }
+            double mean = mean();
+            double squares = Arrays.stream(timesMillis).mapToDouble(t -> (t - mean) * (t - mean)).sum();
+            return Math.sqrt(squares / (timesMillis.length - 1));
+        }
+
+        private long[] sorted() {
+            long[] sorted = timesMillis.clone();
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    private record Run(boolean ok, long millis, long peakRssKib) {
+    }
+
+    private List<Check> checkSamples(String engine) throws Exception {
+        List<Check> checks = new ArrayList<>();
+        List<Path> samples;
+        try (Stream<Path> files = Files.list(SAMPLES)) {
+            samples = files.filter(f -> f.toString().endsWith(".txt")).sorted().toList();
+        }
+        for (Path sample : samples) {
+            Path expected = Path.of(sample.toString().replaceFirst("\\.txt$", ".out"));
+            Run run = run(engine, sample, expected);
+            System.err.printf("%-12s %-40s %s%n", engine, sample.getFileName(), run.ok() ? "OK" : "FAILURE Output didn't match");
+            checks.add(new Check(engine, sample.getFileName().toString(), run.ok()));
+        }
+        return checks;
+    }
+
+    private Result measure(String engine, String input, Path file) throws Exception {
+        Path expected = expectedOutput(file);
+        for (int i = 0; i < warmup; i++) {
+            run(engine, file, expected);
+        }
+        boolean ok = true;
+        long[] times = new long[runs];
+        long peakRss = -1;
+        for (int i = 0; i < runs; i++) {
+            Run run = run(engine, file, expected);
+            ok &= run.ok();
+            times[i] = run.millis();
+            peakRss = Math.max(peakRss, run.peakRssKib());
+        }
+        Result result = new Result(engine, input, ok, times, peakRss);
+        System.err.printf("%-12s %-24s median %,8.0f ms  p90 %,8d ms  stddev %,8.1f ms  peak RSS %,10d KiB  %s%n", engine, input, result.median(),
+                result.p90(), result.stddev(), result.peakRssKib(), ok ? "OK" : "FAILURE Output didn't match");
+        return result;
+    }
+
+    /**
+     * Returns the input file for a {@code <kind>:<rows>} spec, generating it first if it isn't cached yet.
+     */
+    private Path generate(String input) throws Exception {
+        String[] parts = input.split(":");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Inputs must be 'samples' or <kind>:<rows>, but got: " + input);
+        }
+        String kind = parts[0];
+        long rows = Long.parseLong(parts[1].replace("_", ""));
+        Path file = dir.resolve(kind + "-" + rows + "-" + seed + ".txt");
+        if (Files.exists(file)) {
+            return file;
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(javaCommand);
+        command.addAll(jvmArgs());
+        command.addAll(List.of("-Dseed=" + seed, "-cp", classPath));
+        if (kind.equals("standard")) {
+            command.addAll(List.of(CreateMeasurements.class.getName(), String.valueOf(rows)));
+        }
+        else {
+            command.addAll(List.of(CreateAdversarialMeasurements.class.getName(), String.valueOf(rows), kind));
+        }
+        System.err.println("Generating " + file);
+        // both generators write ./measurements.txt, so run them in their own directory
+        Path workDir = Files.createTempDirectory(dir, "generate");
+        Process process = new ProcessBuilder(command).directory(workDir.toFile()).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Generating " + input + " failed");
+        }
+        Files.move(workDir.resolve("measurements.txt"), file, StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(workDir);
+        return file;
+    }
+
+    private Path expectedOutput(Path input) throws Exception {
+        Path expected = Path.of(input.toString().replaceFirst("\\.txt$", ".out"));
+        if (!Files.exists(expected)) {
+            System.err.println("Computing the expected output of " + input);
+            // in exact tenths, independently of the engines under test
+            Map<String, long[]> stations = new TreeMap<>();
+            try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int separator = line.indexOf(';');
+                    long value = Math.round(Double.parseDouble(line.substring(separator + 1)) * 10);
+                    long[] stats = stations.computeIfAbsent(line.substring(0, separator), k -> new long[]{ 0, 0, Long.MAX_VALUE, Long.MIN_VALUE });
+                    stats[0]++;
+                    stats[1] += value;
+                    stats[2] = Math.min(stats[2], value);
+                    stats[3] = Math.max(stats[3], value);
+                }
+            }
+            StringJoiner result = new StringJoiner(", ", "{", "}\n");
+            stations.forEach((station, stats) -> result.add(station + "=" + tenths(stats[2]) + "/" + tenths(Math.round((double) stats[1] / stats[0])) + "/"
+                    + tenths(stats[3])));
+            Path output = Files.createTempFile(dir, "expected", ".out");
+            Files.writeString(output, result.toString());
+            Files.move(output, expected, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return expected;
+    }
+
+    private static String tenths(long value) {
+        return (value < 0 ? "-" : "") + Math.abs(value) / 10 + "." + Math.abs(value) % 10;
+    }
+
+    private Run run(String engine, Path input, Path expected) throws Exception {
+        Path output = Files.createTempFile(dir, "run", ".out");
+        Path errors = Files.createTempFile(dir, "run", ".err");
+        try {
+            long start = System.nanoTime();
+            Process process = engineProcess(engine, input).redirectOutput(output.toFile()).redirectError(errors.toFile()).start();
+            long peakRss = -1;
+            long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            while (!process.waitFor(5, TimeUnit.MILLISECONDS)) {
+                peakRss = Math.max(peakRss, peakRssKib(process.pid()));
+                if (System.nanoTime() > deadline) {
+                    process.destroyForcibly().waitFor();
+                    System.err.println(engine + " timed out after " + timeoutSeconds + " s on " + input);
+                    return new Run(false, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), peakRss);
+                }
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            boolean ok = process.exitValue() == 0 && resultLines(output).equals(resultLines(expected));
+            if (process.exitValue() != 0) {
+                System.err.println(engine + " failed on " + input + ":");
+                System.err.print(Files.readString(errors));
+            }
+            return new Run(ok, millis, peakRss);
+        }
+        finally {
+            Files.delete(output);
+            Files.delete(errors);
+        }
+    }
+
+    private ProcessBuilder engineProcess(String engine, Path input) throws IOException {
+        Path link = workDir.resolve("measurements.txt");
+        Files.deleteIfExists(link);
+        Files.createSymbolicLink(link, input.toAbsolutePath());
+
+        List<String> command = new ArrayList<>();
+        command.add(javaCommand);
+        command.addAll(jvmArgs());
+        command.addAll(List.of("-Dstdout.encoding=UTF-8", "-cp", classPath, engine.contains(".") ? engine : ENGINE_PREFIX + engine, input.toAbsolutePath().toString()));
+        return new ProcessBuilder(command).directory(workDir.toFile());
+    }
+
+    private List<String> jvmArgs() {
+        return jvmArgs.stream().filter(a -> !a.isEmpty()).toList();
+    }
+
+    /**
+     * Returns the output without the timing line, which is all the engines print in addition to their results.
+     */
+    private static String resultLines(Path output) throws IOException {
+        StringBuilder result = new StringBuilder();
+        for (String line : Files.readAllLines(output, StandardCharsets.UTF_8)) {
+            if (!line.startsWith(COMPLETED)) {
+                result.append(line).append('\n');
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Returns the process's peak resident set size so far, or -1 if it can't be read.
+     */
+    private static long peakRssKib(long pid) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/" + pid + "/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // not on Linux, or the process has just exited
+        }
+        return -1;
+    }
+
+    private String toJson(List<Check> checks, List<Result> results) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"java\": ").append(quote(Runtime.version().toString())).append(",\n");
+        json.append("  \"seed\": ").append(seed).append(",\n");
+        json.append("  \"runs\": ").append(runs).append(",\n");
+        json.append("  \"warmup\": ").append(warmup).append(",\n");
+        json.append("  \"checks\": [");
+        for (int i = 0; i < checks.size(); i++) {
+            Check check = checks.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append(String.format("    {\"engine\": %s, \"input\": %s, \"ok\": %s}", quote(check.engine()), quote(check.input()), check.ok()));
+        }
+        json.append(checks.isEmpty() ? "],\n" : "\n  ],\n");
+        json.append("  \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append(String.format("    {\"engine\": %s, \"input\": %s, \"ok\": %s, \"times_ms\": %s, ", quote(result.engine()), quote(result.input()),
+                    result.ok(), Arrays.toString(result.timesMillis())));
+            json.append(String.format("\"median_ms\": %.1f, \"p90_ms\": %d, \"mean_ms\": %.1f, \"trimmed_mean_ms\": %.1f, \"stddev_ms\": %.1f, ",
+                    result.median(), result.p90(), result.mean(), result.trimmedMean(), result.stddev()));
+            json.append(String.format("\"min_ms\": %d, \"max_ms\": %d, \"peak_rss_kib\": %d}", Arrays.stream(result.timesMillis()).min().orElse(0),
+                    Arrays.stream(result.timesMillis()).max().orElse(0), result.peakRssKib()));
+        }
+        json.append(results.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * Prints how the medians compare to the baseline report's and returns whether any regressed beyond the threshold.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean compare(List<Result> results, String baselineReport, double threshold) {
+        Map<String, Double> baseline = new LinkedHashMap<>();
+        Map<String, Object> report = (Map<String, Object>) new JsonParser(baselineReport).parse();
+        for (Object entry : (List<Object>) report.get("results")) {
+            Map<String, Object> result = (Map<String, Object>) entry;
+            baseline.put(result.get("engine") + " " + result.get("input"), (Double) result.get("median_ms"));
+        }
+
+        boolean regressed = false;
+        for (Result result : results) {
+            Double before = baseline.get(result.engine() + " " + result.input());
+            if (before == null) {
+                System.err.printf("%-12s %-24s no baseline%n", result.engine(), result.input());
+                continue;
+            }
+            double change = result.median() / before - 1;
+            boolean regression = change > threshold;
+            regressed |= regression;
+            System.err.printf("%-12s %-24s median %,8.0f ms, was %,8.0f ms (%+.1f%%)%s%n", result.engine(), result.input(), result.median(), before,
+                    change * 100, regression ? "  REGRESSION" : "");
+        }
+        return regressed;
+    }
+
+    /**
+     * Just enough of a JSON parser to read reports back: objects become maps, arrays lists, numbers doubles.
+     */
+    private static class JsonParser {
+        private final String json;
+        private int position;
+
+        JsonParser(String json) {
+            this.json = json;
+        }
+
+        Object parse() {
+            skipWhitespace();
+            char c = json.charAt(position);
+            if (c == '{') {
+                Map<String, Object> object = new LinkedHashMap<>();
+                position++;
+                while (!consume('}')) {
+                    consume(',');
+                    skipWhitespace();
+                    String key = (String) parse();
+                    skipWhitespace();
+                    expect(':');
+                    object.put(key, parse());
+                }
+                return object;
+            }
+            else if (c == '[') {
+                List<Object> array = new ArrayList<>();
+                position++;
+                while (!consume(']')) {
+                    consume(',');
+                    array.add(parse());
+                }
+                return array;
+            }
+            else if (c == '"') {
+                StringBuilder s = new StringBuilder();
+                position++;
+                while ((c = json.charAt(position++)) != '"') {
+                    s.append(c == '\\' ? json.charAt(position++) : c);
+                }
+                return s.toString();
+            }
+            int start = position;
+            while (position < json.length() && ",]} \n\r\t".indexOf(json.charAt(position)) < 0) {
+                position++;
+            }
+            String literal = json.substring(start, position);
+            return switch (literal) {
+                case "true" -> true;
+                case "false" -> false;
+                case "null" -> null;
+                default -> Double.parseDouble(literal);
+            };
+        }
+
+        private boolean consume(char c) {
+            skipWhitespace();
+            if (json.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!consume(c)) {
+                throw new IllegalArgumentException("Expected '" + c + "' at position " + position + " of the baseline report");
+            }
+        }
+
+        private void skipWhitespace() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+        }
+    }
+}
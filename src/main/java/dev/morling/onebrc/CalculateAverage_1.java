@@ -23,7 +23,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.DoubleSummaryStatistics;
+import java.util.LongSummaryStatistics;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
@@ -62,19 +62,20 @@ public class CalculateAverage_1 {
     public static void main(String[] args) throws IOException {
         long start = System.currentTimeMillis();
 
-        Map<String, DoubleSummaryStatistics> allStats = new BufferedReader(new FileReader("measurements.txt"))
+        // in tenths, as summing doubles in parallel makes the rounding of the means depend on the order of the rows
+        Map<String, LongSummaryStatistics> allStats = new BufferedReader(new FileReader(args.length > 0 ? args[0] : FILE))
                 .lines()
                 .parallel()
                 .collect(
                         groupingBy(line -> line.substring(0, line.indexOf(';')),
-                                summarizingDouble(line ->
-                                        parseDouble(line.substring(line.indexOf(';') + 1)))));
+                                summarizingLong(line ->
+                                        Math.round(parseDouble(line.substring(line.indexOf(';') + 1)) * 10))));
         Map<String, String> result = allStats.entrySet().stream().collect(Collectors.toMap(
                 Map.Entry::getKey,
                 e -> {
                     var stats = e.getValue();
                     return String.format("%.1f/%.1f/%.1f",
-                            stats.getMin(), stats.getAverage(), stats.getMax());
+                            stats.getMin() / 10.0, Math.round(stats.getAverage()) / 10.0, stats.getMax() / 10.0);
                 },
                 (l, r) -> r,
                 TreeMap::new));
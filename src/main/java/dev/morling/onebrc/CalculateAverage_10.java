@@ -0,0 +1,545 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_LONG_UNALIGNED;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT_UNALIGNED;
+
+/**
+ * Aggregates inputs with very many distinct keys (e.g. tens of millions of device ids) in bounded memory, where a
+ * private table per worker would take gigabytes each.
+ * <p>
+ * In the scatter phase, workers parse their part of the file and append each row, as {@code <name length><name><value>},
+ * to a small per-worker buffer of the row's partition ({@code -Dpartition.buffer}, default 16k), chosen by the high bits
+ * of the key's hash. Full buffers are handed over to the partition. Each partition holds on to at most its share of
+ * {@code -Dmemory.budget} (default 512m); once it exceeds it, it writes its buffers to a temp file (in {@code -Dspill.dir},
+ * default {@code java.io.tmpdir}) and appends all further rows there. In the aggregate phase, the partitions
+ * ({@code -Dpartitions}, default 256) are aggregated independently, each into a table covering only its own keys, so
+ * it's small enough to stay in cache. A spilled partition whose file is larger than its share of the budget is split up
+ * into sub-partitions by the next bits of the hash in the same way first, recursively, until the hash bits are used up.
+ * The partition results are kept in memory as long as they fit into the budget as well, the others are written sorted to
+ * temp files, and finally all partition results are merged by name while they are written out, in the format chosen with
+ * {@code -Doutput} (see {@link ResultWriter}). Temp files are removed also if the run fails.
+ * <p>
+ * Besides the budget, memory is taken by the per-worker buffers, i.e. workers * partitions * buffer size.
+ */
+public class CalculateAverage_10 {
+
+    private static final String FILE = "./measurements.txt";
+
+    private static final int PARTITION_BITS = Math.max(1, Integer.numberOfTrailingZeros(Integer.highestOneBit(Integer.getInteger("partitions", 256))));
+    private static final int PARTITIONS = 1 << PARTITION_BITS;
+    private static final int MAX_LEVEL = 32 / PARTITION_BITS - 1;
+    private static final int BUFFER_SIZE = (int) CalculateAverage_5.parseSize(System.getProperty("partition.buffer", "16k"));
+    private static final long MEMORY_BUDGET = CalculateAverage_5.parseSize(System.getProperty("memory.budget", "512m"));
+
+    // name length and value of a record
+    private static final int RECORD_OVERHEAD = 2 + 8;
+    // rough heap size of a result entry besides its name: tree map entry, string and stats
+    private static final int RESULT_ENTRY_OVERHEAD = 160;
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        int spilled = aggregate(new File(args.length > 0 ? args[0] : FILE), Runtime.getRuntime().availableProcessors(), 0);
+
+        long endTime = System.currentTimeMillis();
+
+        String time = String.format("%d min, %d sec",
+                TimeUnit.MILLISECONDS.toMinutes(endTime - startTime),
+                TimeUnit.MILLISECONDS.toSeconds(endTime - startTime) -
+                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(endTime - startTime)));
+        System.out.println("Solution completed in " + time + " (" + spilled + " of " + PARTITIONS + " partitions spilled)");
+    }
+
+    /**
+     * Aggregates the given file with the given number of threads, each scattering one range of it, and writes the
+     * results.
+     *
+     * @param expectedKeys the number of distinct keys to size the tables for, if known, otherwise 0
+     * @return the number of partitions which have been spilled
+     */
+    static int aggregate(File file, int threads, long expectedKeys) throws Exception {
+        final long length = file.length();
+        final int chunkCount = threads;
+        final long[] chunkStartOffsets = new long[chunkCount];
+
+        Path spillDir = Files.createTempDirectory(Path.of(System.getProperty("spill.dir", System.getProperty("java.io.tmpdir"))), "partitions");
+        Partition[] partitions = new Partition[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            partitions[i] = new Partition(String.valueOf(i), 0, spillDir, MEMORY_BUDGET / PARTITIONS, MEMORY_BUDGET / PARTITIONS);
+        }
+
+        int spilled = 0;
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r"); Arena arena = Arena.ofShared()) {
+                for (int i = 1; i < chunkStartOffsets.length; i++) {
+                    var start = length * i / chunkStartOffsets.length;
+                    raf.seek(start);
+                    int b;
+                    do {
+                        b = raf.read();
+                    } while (b != '\n' && b != -1);
+                    chunkStartOffsets[i] = raf.getFilePointer();
+                }
+
+                final var mappedFile = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length, arena);
+                runWorkers(chunkCount, index -> {
+                    long chunkStart = chunkStartOffsets[index];
+                    long chunkEnd = (index + 1 < chunkCount) ? chunkStartOffsets[index + 1] : length;
+                    scatter(mappedFile.asSlice(chunkStart, chunkEnd - chunkStart), partitions);
+                });
+            }
+
+            AtomicInteger nextPartition = new AtomicInteger();
+            AtomicLong heldResults = new AtomicLong();
+            runWorkers(chunkCount, index -> {
+                for (int p = nextPartition.getAndIncrement(); p < PARTITIONS; p = nextPartition.getAndIncrement()) {
+                    partitions[p].aggregate(heldResults, expectedKeys / PARTITIONS);
+                }
+            });
+
+            List<Partition> leaves = new ArrayList<>();
+            for (Partition partition : partitions) {
+                partition.collectLeaves(leaves);
+                if (partition.spillFile != null) {
+                    spilled++;
+                }
+            }
+            try (ResultWriter out = ResultWriter.open()) {
+                merge(leaves, out);
+            }
+        }
+        finally {
+            for (Partition partition : partitions) {
+                partition.close();
+            }
+            deleteSpillDir(spillDir);
+        }
+        return spilled;
+    }
+
+    private interface Work {
+        void run(int index) throws IOException;
+    }
+
+    /**
+     * Runs the given work on {@code count} threads, rethrowing the first failure of any of them.
+     */
+    private static void runWorkers(int count, Work work) throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    work.run(index);
+                }
+                catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (failure.get() instanceof Error e) {
+            throw e;
+        }
+        else if (failure.get() != null) {
+            throw (Exception) failure.get();
+        }
+    }
+
+    private static void deleteSpillDir(Path spillDir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spillDir)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(spillDir);
+    }
+
+    private static ByteBuffer allocateBuffer() {
+        return ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * The partition of a key at the given level of repartitioning, taken from the next {@code PARTITION_BITS} bits of
+     * its hash.
+     */
+    private static int partition(int hash, int level) {
+        // the table hashes take the slot from the low bits; spread the high ones, which are sparse for short names
+        return ((hash * 0x9E3779B9) << (level * PARTITION_BITS)) >>> (32 - PARTITION_BITS);
+    }
+
+    /**
+     * Appends the records of all lines of the chunk, including a final line without line break, to the partitions.
+     */
+    private static void scatter(MemorySegment chunk, Partition[] partitions) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[PARTITIONS];
+        long end = chunk.byteSize();
+        while (end > 0 && chunk.get(JAVA_BYTE, end - 1) != '\n') {
+            end--;
+        }
+        scatter(chunk, end, buffers, partitions);
+        if (end < chunk.byteSize()) {
+            MemorySegment lastLine = StationTable.terminated(chunk, end, chunk.byteSize());
+            scatter(lastLine, lastLine.byteSize(), buffers, partitions);
+        }
+        flush(buffers, partitions);
+    }
+
+    private static void scatter(MemorySegment chunk, long end, ByteBuffer[] buffers, Partition[] partitions) throws IOException {
+        for (long cursor = 0; cursor < end;) {
+            long semicolonPos = cursor;
+            while (chunk.get(JAVA_BYTE, semicolonPos) != ';') {
+                semicolonPos++;
+            }
+
+            long valueStart = semicolonPos + 1;
+            long value;
+            long lineEnd;
+            long packed = FixedPoint.DEFAULT_SCALE > 0 ? FixedPoint.parseShort(chunk, valueStart) : FixedPoint.NO_SHORT_FORM;
+            if (packed != FixedPoint.NO_SHORT_FORM) {
+                value = FixedPoint.fromTenths(packed >> 8, FixedPoint.DEFAULT_SCALE);
+                lineEnd = valueStart + (packed & 0xFF);
+            }
+            else {
+                lineEnd = valueStart;
+                while (chunk.get(JAVA_BYTE, lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                value = FixedPoint.parse(chunk, valueStart, lineEnd, FixedPoint.DEFAULT_SCALE);
+            }
+
+            int nameLength = (int) (semicolonPos - cursor);
+            if (nameLength > 0xFFFF) {
+                throw new IllegalStateException("Name longer than 65535 bytes at offset " + cursor);
+            }
+            if (RECORD_OVERHEAD + nameLength > BUFFER_SIZE) {
+                throw new IllegalStateException("Name of " + nameLength + " bytes at offset " + cursor + " doesn't fit into a partition buffer of "
+                        + BUFFER_SIZE + " bytes, increase -Dpartition.buffer");
+            }
+            append(buffers, partitions, partition(StationTable.hash(chunk, cursor, nameLength), 0), chunk, cursor, nameLength, value);
+
+            cursor = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Appends a record to the given partition's buffer, handing the buffer over to the partition first if the record
+     * doesn't fit anymore.
+     */
+    private static void append(ByteBuffer[] buffers, Partition[] partitions, int partition, MemorySegment source, long nameOffset, int nameLength, long value)
+            throws IOException {
+        ByteBuffer buffer = buffers[partition];
+        if (buffer == null) {
+            buffer = buffers[partition] = allocateBuffer();
+        }
+        else if (buffer.remaining() < RECORD_OVERHEAD + nameLength) {
+            buffer = buffers[partition] = partitions[partition].add(buffer.flip());
+        }
+
+        buffer.putShort((short) nameLength);
+        MemorySegment.copy(source, JAVA_BYTE, nameOffset, buffer.array(), buffer.arrayOffset() + buffer.position(), nameLength);
+        buffer.position(buffer.position() + nameLength);
+        buffer.putLong(value);
+    }
+
+    private static void flush(ByteBuffer[] buffers, Partition[] partitions) throws IOException {
+        for (int i = 0; i < PARTITIONS; i++) {
+            if (buffers[i] != null && buffers[i].position() > 0) {
+                partitions[i].add(buffers[i].flip());
+            }
+        }
+    }
+
+    private static void aggregateRecords(MemorySegment records, StationTable table) {
+        for (long offset = 0; offset < records.byteSize();) {
+            int nameLength = records.get(JAVA_SHORT_UNALIGNED, offset) & 0xFFFF;
+            table.add(records, offset + 2, nameLength, records.get(JAVA_LONG_UNALIGNED, offset + 2 + nameLength));
+            offset += RECORD_OVERHEAD + nameLength;
+        }
+    }
+
+    /**
+     * Writes all partition results sorted by name; the key sets of the partitions are disjoint.
+     */
+    private static void merge(List<Partition> partitions, ResultWriter out) throws IOException {
+        PriorityQueue<Source> heap = new PriorityQueue<>(Comparator.comparing((Source source) -> source.current.getKey()));
+        List<Source> sources = new ArrayList<>();
+        try {
+            for (Partition partition : partitions) {
+                Source source;
+                if (partition.resultFile != null) {
+                    BufferedReader reader = Files.newBufferedReader(partition.resultFile, StandardCharsets.UTF_8);
+                    source = new Source(reader.lines().map(CalculateAverage_10::parseResult).iterator(), reader);
+                }
+                else {
+                    source = new Source(partition.result.entrySet().iterator(), null);
+                }
+                sources.add(source);
+                if (source.advance()) {
+                    heap.add(source);
+                }
+            }
+
+            while (!heap.isEmpty()) {
+                Source source = heap.poll();
+                out.write(source.current.getKey(), source.current.getValue());
+                if (source.advance()) {
+                    heap.add(source);
+                }
+            }
+        }
+        finally {
+            for (Source source : sources) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Parses a line of a partition's result file, {@code <name>;<count>;<sum>;<min>;<max>}.
+     */
+    private static Map.Entry<String, StationTable.Stats> parseResult(String line) {
+        String[] fields = line.split(";");
+        return Map.entry(fields[0], new StationTable.Stats(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                Long.parseLong(fields[4]), FixedPoint.DEFAULT_SCALE));
+    }
+
+    /**
+     * One partition's result, sorted by name, during the final merge.
+     */
+    private static class Source {
+        private final Iterator<Map.Entry<String, StationTable.Stats>> entries;
+        private final BufferedReader reader;
+        private Map.Entry<String, StationTable.Stats> current;
+
+        Source(Iterator<Map.Entry<String, StationTable.Stats>> entries, BufferedReader reader) {
+            this.entries = entries;
+            this.reader = reader;
+        }
+
+        boolean advance() throws IOException {
+            if (!entries.hasNext()) {
+                close();
+                return false;
+            }
+            current = entries.next();
+            return true;
+        }
+
+        void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    private static class Partition {
+        private final String name;
+        private final int level;
+        private final Path spillDir;
+        private final long budget;
+        private final long holdLimit;
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        private long bufferedBytes;
+        private FileChannel spill;
+        private Partition[] children;
+
+        Path spillFile;
+        TreeMap<String, StationTable.Stats> result;
+        Path resultFile;
+
+        /**
+         * @param budget the size up to which the rows are aggregated at once, larger ones are repartitioned
+         * @param holdLimit the size up to which the rows are held in memory, larger ones are spilled
+         */
+        Partition(String name, int level, Path spillDir, long budget, long holdLimit) {
+            this.name = name;
+            this.level = level;
+            this.spillDir = spillDir;
+            this.budget = budget;
+            this.holdLimit = holdLimit;
+        }
+
+        /**
+         * Takes over a worker's full buffer, flipped for reading.
+         *
+         * @return an empty buffer for the worker to continue with
+         */
+        synchronized ByteBuffer add(ByteBuffer buffer) throws IOException {
+            if (spill == null && bufferedBytes + buffer.capacity() <= holdLimit) {
+                buffers.add(buffer);
+                bufferedBytes += buffer.capacity();
+                return allocateBuffer();
+            }
+
+            if (spill == null) {
+                spillFile = spillDir.resolve(name + ".rows");
+                spill = FileChannel.open(spillFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                for (ByteBuffer held : buffers) {
+                    writeFully(held);
+                }
+                buffers.clear();
+                bufferedBytes = 0;
+            }
+            writeFully(buffer);
+            return buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                spill.write(buffer);
+            }
+        }
+
+        /**
+         * Aggregates this partition's rows, keeping the result in memory as long as all results held so far fit into the
+         * memory budget, otherwise writing it to a result file.
+         *
+         * @param expectedKeys the number of distinct keys to size the table for, if known
+         */
+        void aggregate(AtomicLong heldResults, long expectedKeys) throws IOException {
+            if (spill != null && spill.size() > budget && level < MAX_LEVEL) {
+                repartition();
+                for (Partition child : children) {
+                    child.aggregate(heldResults, expectedKeys / PARTITIONS);
+                }
+                return;
+            }
+
+            StationTable table = new StationTable(Math.clamp(expectedKeys, 64, 1 << 24));
+            for (ByteBuffer buffer : buffers) {
+                aggregateRecords(MemorySegment.ofBuffer(buffer), table);
+            }
+            buffers.clear();
+
+            if (spill != null) {
+                try (Arena arena = Arena.ofConfined()) {
+                    aggregateRecords(spill.map(FileChannel.MapMode.READ_ONLY, 0, spill.size(), arena), table);
+                }
+                deleteSpill();
+            }
+
+            TreeMap<String, StationTable.Stats> map = table.toMap();
+            long size = 0;
+            for (String key : map.keySet()) {
+                size += RESULT_ENTRY_OVERHEAD + 2L * key.length();
+            }
+            if (heldResults.addAndGet(size) <= MEMORY_BUDGET) {
+                result = map;
+                return;
+            }
+            heldResults.addAndGet(-size);
+
+            resultFile = spillDir.resolve(name + ".result");
+            try (Writer writer = Files.newBufferedWriter(resultFile, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, StationTable.Stats> entry : map.entrySet()) {
+                    StationTable.Stats stats = entry.getValue();
+                    writer.write(entry.getKey() + ";" + stats.count() + ";" + stats.sum() + ";" + stats.min() + ";" + stats.max() + "\n");
+                }
+            }
+        }
+
+        /**
+         * Splits the spilled rows up into sub-partitions by the next bits of their keys' hashes, so that each can be
+         * aggregated on its own.
+         */
+        private void repartition() throws IOException {
+            children = new Partition[PARTITIONS];
+            for (int i = 0; i < PARTITIONS; i++) {
+                // together, the sub-partitions hold no more in memory than this partition did
+                children[i] = new Partition(name + "." + i, level + 1, spillDir, budget, holdLimit / PARTITIONS);
+            }
+
+            ByteBuffer[] childBuffers = new ByteBuffer[PARTITIONS];
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment records = spill.map(FileChannel.MapMode.READ_ONLY, 0, spill.size(), arena);
+                for (long offset = 0; offset < records.byteSize();) {
+                    int nameLength = records.get(JAVA_SHORT_UNALIGNED, offset) & 0xFFFF;
+                    int child = partition(StationTable.hash(records, offset + 2, nameLength), level + 1);
+                    append(childBuffers, children, child, records, offset + 2, nameLength, records.get(JAVA_LONG_UNALIGNED, offset + 2 + nameLength));
+                    offset += RECORD_OVERHEAD + nameLength;
+                }
+            }
+            flush(childBuffers, children);
+            deleteSpill();
+        }
+
+        private void deleteSpill() throws IOException {
+            spill.close();
+            spill = null;
+            Files.delete(spillFile);
+        }
+
+        void collectLeaves(List<Partition> leaves) {
+            if (children == null) {
+                leaves.add(this);
+                return;
+            }
+            for (Partition child : children) {
+                child.collectLeaves(leaves);
+            }
+        }
+
+        /**
+         * Closes the spill files still open after a failure; the files themselves are removed with the spill directory.
+         */
+        void close() throws IOException {
+            if (spill != null) {
+                spill.close();
+            }
+            if (children != null) {
+                for (Partition child : children) {
+                    child.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Aggregates into either one {@link StationTable} per worker, merged at the end, or one off-heap table shared by all
+ * workers. With many threads and many keys, private tables hold a copy of (almost) every key per thread and have to be
+ * merged afterwards, whereas a shared table holds each key once.
+ * <p>
+ * In the {@link SharedTable}, slots are claimed with a CAS, and stats are updated with atomic adds and CAS based
+ * min/max through {@link VarHandle}s. To keep hot keys from bouncing cache lines between cores, each worker combines
+ * updates in a small direct-mapped {@link Combiner} first, and only flushes a key's partial stats to the shared table
+ * when its combiner entry is evicted or the worker is done.
+ * <p>
+ * {@code -Dtable=shared|private|auto} selects the table; with {@code auto} (default), the number of distinct keys is
+ * estimated by the {@link Planner}, and the shared table is used if the private tables would hold more than
+ * {@code -Dshared.threshold} (default 1m) entries in total.
+ * <p>
+ * Results are written as chosen with {@code -Doutput}, see {@link ResultWriter}.
+ */
+public class CalculateAverage_11 {
+
+    private static final String FILE = "./measurements.txt";
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        final File file = new File(args.length > 0 ? args[0] : FILE);
+        final long length = file.length();
+        final int chunkCount = Runtime.getRuntime().availableProcessors();
+        final long[] chunkStartOffsets = new long[chunkCount];
+        final TreeMap<String, StationTable.Stats> result;
+        final Planner.Estimate estimate;
+        final boolean shared;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); Arena arena = Arena.ofShared()) {
+            for (int i = 1; i < chunkStartOffsets.length; i++) {
+                var start = length * i / chunkStartOffsets.length;
+                raf.seek(start);
+                int b;
+                do {
+                    b = raf.read();
+                } while (b != '\n' && b != -1);
+                chunkStartOffsets[i] = raf.getFilePointer();
+            }
+
+            final var mappedFile = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length, arena);
+            estimate = Planner.estimate(mappedFile);
+            shared = switch (System.getProperty("table", "auto")) {
+                case "shared" -> true;
+                case "private" -> false;
+                default -> estimate.distinctKeys() * chunkCount > Planner.SHARED_THRESHOLD;
+            };
+
+            final SharedTable sharedTable = shared ? new SharedTable(estimate, arena) : null;
+            final StationTable[] tables = new StationTable[chunkCount];
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread[] threads = new Thread[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                final int index = i;
+                final MemorySegment chunk = mappedFile.asSlice(chunkStartOffsets[i], ((i + 1 < chunkCount) ? chunkStartOffsets[i + 1] : length) - chunkStartOffsets[i]);
+                threads[i] = new Thread(() -> {
+                    try {
+                        if (sharedTable != null) {
+                            tables[index] = new Combiner(sharedTable).process(chunk);
+                        }
+                        else {
+                            tables[index] = new StationTable();
+                            tables[index].addLines(chunk, 0, chunk.byteSize(), true);
+                        }
+                    }
+                    catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+            }
+
+            for (Thread thread : threads) {
+                thread.start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (failure.get() != null) {
+                throw new IllegalStateException("Processing " + file + " failed", failure.get());
+            }
+
+            StationTable merged = new StationTable();
+            for (StationTable table : tables) {
+                merged.merge(table);
+            }
+            result = merged.toMap();
+            if (sharedTable != null) {
+                sharedTable.mergeInto(result);
+            }
+        }
+
+        ResultWriter.writeAll(result);
+
+        long endTime = System.currentTimeMillis();
+
+        String time = String.format("%d min, %d sec",
+                TimeUnit.MILLISECONDS.toMinutes(endTime - startTime),
+                TimeUnit.MILLISECONDS.toSeconds(endTime - startTime) -
+                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(endTime - startTime)));
+        System.out.println("Solution completed in " + time + " (table=" + (shared ? "shared" : "private") + ", ~" + estimate.distinctKeys() + " keys estimated)");
+    }
+
+    /**
+     * An open-addressing table in one off-heap segment, shared by all workers. A slot is claimed by a CAS of its state
+     * from empty to claimed; the claiming thread then writes the key and publishes it with a release store of the ready
+     * state, for which other threads spin if they probe that slot meanwhile. Slots are never removed or moved, so once
+     * a key is found, its slot index stays valid. The names are kept out of line, appended to a second segment which is
+     * sized from the sample's average line length, so slots stay small regardless of how long names may get. The table
+     * doesn't grow: once three quarters of the slots are taken, or the name segment is full,
+     * {@link #slot(MemorySegment, long, int, int)} returns -1 for new keys, and callers aggregate such keys privately.
+     * By default, the capacity is the smallest power of two of which three quarters hold the estimated keys, i.e. less
+     * than three times the estimated keys, at most {@code 1 << 24} slots ({@code -Dtable.capacity} overrides it).
+     */
+    static class SharedTable {
+        private static final VarHandle INT = MethodHandles.memorySegmentViewVarHandle(JAVA_INT);
+        private static final VarHandle LONG = MethodHandles.memorySegmentViewVarHandle(JAVA_LONG);
+
+        private static final int EMPTY = 0;
+        private static final int CLAIMED = 1;
+        private static final int READY = 2;
+
+        private static final long STATE = 0;
+        private static final long HASH = 4;
+        private static final long LENGTH = 8;
+        // offset of the name in the name segment
+        private static final long NAME = 16;
+        private static final long COUNT = 24;
+        private static final long SUM = 32;
+        private static final long MIN = 40;
+        private static final long MAX = 48;
+        private static final long SLOT_SIZE = 56;
+
+        private static final long MIN_NAMES_SIZE = 64 << 10;
+
+        private final MemorySegment slots;
+        private final MemorySegment names;
+        private final int mask;
+        private final int limit;
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicLong namesSize = new AtomicLong();
+
+        SharedTable(Planner.Estimate estimate, Arena arena) {
+            int minCapacity = Math.clamp(estimate.distinctKeys() / 3 * 4 + 4, 1024, 1 << 24);
+            int capacity = Integer.getInteger("table.capacity", Integer.highestOneBit(minCapacity * 2 - 1));
+            this.mask = capacity - 1;
+            this.limit = capacity / 4 * 3;
+            this.slots = arena.allocate(capacity * SLOT_SIZE, 64);
+            // a line is longer than its name, which leaves room for names above average
+            this.names = arena.allocate(Math.max(MIN_NAMES_SIZE, limit * (long) Math.ceil(estimate.averageLineLength())));
+        }
+
+        /**
+         * Returns the slot of the given key, claiming one if the key isn't present yet; or -1 if the table is too full.
+         */
+        int slot(MemorySegment segment, long nameOffset, int nameLength, int hash) {
+            int slot = hash & mask;
+            long name = -1;
+            while (true) {
+                long base = slot * SLOT_SIZE;
+                int state = (int) INT.getAcquire(slots, base + STATE);
+                if (state == EMPTY) {
+                    if (size.get() >= limit) {
+                        return -1;
+                    }
+                    if (name < 0) {
+                        // reserved once per call; if another thread claims the slot first, the space is reused for the next one
+                        name = namesSize.getAndAdd(nameLength);
+                        if (name + nameLength > names.byteSize()) {
+                            return -1;
+                        }
+                    }
+                    if (INT.compareAndSet(slots, base + STATE, EMPTY, CLAIMED)) {
+                        size.incrementAndGet();
+                        MemorySegment.copy(segment, nameOffset, names, name, nameLength);
+                        slots.set(JAVA_INT, base + HASH, hash);
+                        slots.set(JAVA_INT, base + LENGTH, nameLength);
+                        slots.set(JAVA_LONG, base + NAME, name);
+                        slots.set(JAVA_LONG, base + MIN, Long.MAX_VALUE);
+                        slots.set(JAVA_LONG, base + MAX, Long.MIN_VALUE);
+                        INT.setRelease(slots, base + STATE, READY);
+                        return slot;
+                    }
+                    state = (int) INT.getAcquire(slots, base + STATE);
+                }
+                while (state == CLAIMED) {
+                    Thread.onSpinWait();
+                    state = (int) INT.getAcquire(slots, base + STATE);
+                }
+                if (slots.get(JAVA_INT, base + HASH) == hash && slots.get(JAVA_INT, base + LENGTH) == nameLength
+                        && MemorySegment.mismatch(names, slots.get(JAVA_LONG, base + NAME), slots.get(JAVA_LONG, base + NAME) + nameLength, segment, nameOffset,
+                                nameOffset + nameLength) == -1) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        void add(int slot, long count, long sum, long min, long max) {
+            long base = slot * SLOT_SIZE;
+            LONG.getAndAdd(slots, base + COUNT, count);
+            LONG.getAndAdd(slots, base + SUM, sum);
+
+            long current = (long) LONG.getVolatile(slots, base + MIN);
+            while (min < current && !LONG.weakCompareAndSet(slots, base + MIN, current, min)) {
+                current = (long) LONG.getVolatile(slots, base + MIN);
+            }
+            current = (long) LONG.getVolatile(slots, base + MAX);
+            while (max > current && !LONG.weakCompareAndSet(slots, base + MAX, current, max)) {
+                current = (long) LONG.getVolatile(slots, base + MAX);
+            }
+        }
+
+        /**
+         * Adds all keys into the given map, combining them with the keys which are already present. Must only be called
+         * once all workers are done.
+         */
+        void mergeInto(TreeMap<String, StationTable.Stats> result) {
+            for (long base = 0; base < slots.byteSize(); base += SLOT_SIZE) {
+                if (slots.get(JAVA_INT, base + STATE) != READY) {
+                    continue;
+                }
+                String name = new String(names.asSlice(slots.get(JAVA_LONG, base + NAME), slots.get(JAVA_INT, base + LENGTH)).toArray(JAVA_BYTE),
+                        StandardCharsets.UTF_8);
+                StationTable.Stats stats = new StationTable.Stats(slots.get(JAVA_LONG, base + COUNT), slots.get(JAVA_LONG, base + SUM),
+                        slots.get(JAVA_LONG, base + MIN), slots.get(JAVA_LONG, base + MAX), FixedPoint.DEFAULT_SCALE);
+                result.merge(name, stats, (a, b) -> new StationTable.Stats(a.count() + b.count(), a.sum() + b.sum(),
+                        Math.min(a.min(), b.min()), Math.max(a.max(), b.max()), a.scale()));
+            }
+        }
+    }
+
+    /**
+     * A worker's direct-mapped cache of partial stats per shared table slot ({@code -Dcombiner.size}, default 1024
+     * entries). A row for a cached slot only updates the worker's own arrays; the shared slot is only written when its
+     * entry is evicted by another slot mapping to the same entry, or when the worker is done.
+     */
+    static class Combiner {
+        private static final int SIZE = Integer.highestOneBit(Integer.getInteger("combiner.size", 1024));
+
+        private final SharedTable table;
+        private final int[] cachedSlots = new int[SIZE];
+        private final long[] counts = new long[SIZE];
+        private final long[] sums = new long[SIZE];
+        private final long[] mins = new long[SIZE];
+        private final long[] maxs = new long[SIZE];
+
+        Combiner(SharedTable table) {
+            this.table = table;
+            Arrays.fill(cachedSlots, -1);
+        }
+
+        /**
+         * Aggregates all lines of the chunk, including a final line without line break.
+         *
+         * @return the private table of the keys which didn't fit into the shared table
+         */
+        StationTable process(MemorySegment chunk) {
+            StationTable overflow = new StationTable(16);
+            long end = chunk.byteSize();
+            while (end > 0 && chunk.get(JAVA_BYTE, end - 1) != '\n') {
+                end--;
+            }
+            process(chunk, end, overflow);
+            if (end < chunk.byteSize()) {
+                MemorySegment lastLine = StationTable.terminated(chunk, end, chunk.byteSize());
+                process(lastLine, lastLine.byteSize(), overflow);
+            }
+
+            for (int i = 0; i < SIZE; i++) {
+                flush(i);
+            }
+            return overflow;
+        }
+
+        private void process(MemorySegment chunk, long end, StationTable overflow) {
+            for (long cursor = 0; cursor < end;) {
+                long semicolonPos = cursor;
+                while (chunk.get(JAVA_BYTE, semicolonPos) != ';') {
+                    semicolonPos++;
+                }
+
+                long valueStart = semicolonPos + 1;
+                long value;
+                long lineEnd;
+                long packed = FixedPoint.DEFAULT_SCALE > 0 ? FixedPoint.parseShort(chunk, valueStart) : FixedPoint.NO_SHORT_FORM;
+                if (packed != FixedPoint.NO_SHORT_FORM) {
+                    value = FixedPoint.fromTenths(packed >> 8, FixedPoint.DEFAULT_SCALE);
+                    lineEnd = valueStart + (packed & 0xFF);
+                }
+                else {
+                    lineEnd = valueStart;
+                    while (chunk.get(JAVA_BYTE, lineEnd) != '\n') {
+                        lineEnd++;
+                    }
+                    value = FixedPoint.parse(chunk, valueStart, lineEnd, FixedPoint.DEFAULT_SCALE);
+                }
+
+                int nameLength = (int) (semicolonPos - cursor);
+                int slot = table.slot(chunk, cursor, nameLength, StationTable.hash(chunk, cursor, nameLength));
+                if (slot >= 0) {
+                    add(slot, value);
+                }
+                else {
+                    overflow.add(chunk, cursor, nameLength, value);
+                }
+                cursor = lineEnd + 1;
+            }
+        }
+
+        private void add(int slot, long value) {
+            int i = slot & (SIZE - 1);
+            if (cachedSlots[i] != slot) {
+                flush(i);
+                cachedSlots[i] = slot;
+            }
+            counts[i]++;
+            sums[i] += value;
+            mins[i] = Math.min(mins[i], value);
+            maxs[i] = Math.max(maxs[i], value);
+        }
+
+        private void flush(int i) {
+            if (cachedSlots[i] >= 0 && counts[i] > 0) {
+                table.add(cachedSlots[i], counts[i], sums[i], mins[i], maxs[i]);
+            }
+            cachedSlots[i] = -1;
+            counts[i] = 0;
+            sums[i] = 0;
+            mins[i] = Long.MAX_VALUE;
+            maxs[i] = Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.File;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Lets the {@link Planner} decide how to process the input: it samples the file, and the resulting plan (logged to
+ * stderr) sets the number of threads, the chunk size, the table capacity and the engine. Chunks are claimed by the
+ * threads one at a time, so threads which got faster chunks take over more of them. A {@code partitioned} plan is
+ * handed over to {@link CalculateAverage_10} with the planned threads and table capacity; it gives each thread one
+ * range of the file to scatter, so the chunk size doesn't apply there. Results are written as chosen with {@code -Doutput}, see
+ * {@link ResultWriter}.
+ */
+public class CalculateAverage_12 {
+
+    private static final String FILE = "./measurements.txt";
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        final File file = new File(args.length > 0 ? args[0] : FILE);
+        final Planner.Plan plan;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ); Arena arena = Arena.ofShared()) {
+            final MemorySegment mappedFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            plan = Planner.plan(mappedFile);
+            System.err.println(plan);
+
+            if (plan.engine() == Planner.Engine.PARTITIONED) {
+                CalculateAverage_10.aggregate(file, plan.threads(), plan.tableCapacity());
+            }
+            else {
+                ResultWriter.writeAll(aggregate(mappedFile, plan, arena));
+            }
+        }
+
+        long endTime = System.currentTimeMillis();
+
+        String time = String.format("%d min, %d sec",
+                TimeUnit.MILLISECONDS.toMinutes(endTime - startTime),
+                TimeUnit.MILLISECONDS.toSeconds(endTime - startTime) -
+                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(endTime - startTime)));
+        System.out.println("Solution completed in " + time + " (" + plan.engine().name().toLowerCase() + ", " + plan.threads() + " thread(s))");
+    }
+
+    /**
+     * Aggregates the chunks of the file on the planned threads, into private tables or a shared one as planned.
+     */
+    private static TreeMap<String, StationTable.Stats> aggregate(MemorySegment mappedFile, Planner.Plan plan, Arena arena) throws InterruptedException {
+        final List<MemorySegment> chunks = split(mappedFile, plan.chunkSize());
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final CalculateAverage_11.SharedTable sharedTable = plan.engine() == Planner.Engine.SHARED
+                ? new CalculateAverage_11.SharedTable(plan.estimate(), arena)
+                : null;
+        final StationTable[] tables = new StationTable[plan.threads()];
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[plan.threads()];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    CalculateAverage_11.Combiner combiner = sharedTable != null ? new CalculateAverage_11.Combiner(sharedTable) : null;
+                    StationTable table = new StationTable(sharedTable != null ? 16 : plan.tableCapacity());
+                    for (int c = nextChunk.getAndIncrement(); c < chunks.size() && failure.get() == null; c = nextChunk.getAndIncrement()) {
+                        MemorySegment chunk = chunks.get(c);
+                        if (combiner != null) {
+                            table.merge(combiner.process(chunk));
+                        }
+                        else {
+                            // only the last chunk can end without a line break
+                            table.addLines(chunk, 0, chunk.byteSize(), true);
+                        }
+                    }
+                    tables[index] = table;
+                }
+                catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Aggregating the chunks failed", failure.get());
+        }
+
+        StationTable merged = new StationTable(sharedTable != null ? 16 : plan.tableCapacity());
+        for (StationTable table : tables) {
+            merged.merge(table);
+        }
+        TreeMap<String, StationTable.Stats> result = merged.toMap();
+        if (sharedTable != null) {
+            sharedTable.mergeInto(result);
+        }
+        return result;
+    }
+
+    /**
+     * Splits the file into line-aligned chunks of about the given size.
+     */
+    private static List<MemorySegment> split(MemorySegment file, long chunkSize) {
+        List<MemorySegment> chunks = new ArrayList<>();
+        long start = 0;
+        while (start < file.byteSize()) {
+            long end = Math.min(file.byteSize(), start + chunkSize);
+            while (end < file.byteSize() && file.get(JAVA_BYTE, end - 1) != '\n') {
+                end++;
+            }
+            chunks.add(file.asSlice(start, end - start));
+            start = end;
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.File;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Gives a fast approximate answer by aggregating only a random sample of the file's newline-aligned blocks
+ * ({@code -Dblock.size}, default 1m), for when a result within a fraction of a degree in a fraction of the time beats
+ * an exact one.
+ * <p>
+ * The sample is either a share of the blocks ({@code -Dsample.rate}, default 0.02) or as many blocks as can be
+ * aggregated within {@code -Dtime.budget} milliseconds, if that is given. Blocks are drawn in a random order
+ * ({@code -Dseed} makes it reproducible). Each station is printed as {@code min/mean+-ci/max (n~count)}: the observed
+ * min and max, the mean with the half width of its 95% confidence interval, and the row count extrapolated to the whole
+ * file. As whole blocks are sampled, the interval is that of a ratio estimator under cluster sampling, computed from
+ * the per-block sums and counts, with a finite population correction; it doesn't assume rows within a block to be
+ * independent.
+ * <p>
+ * With {@code -Drefine=true}, aggregation continues in the background after the approximate answer has been printed,
+ * printing a refined answer every {@code -Drefine.interval} milliseconds (default 1000), until all blocks are done and
+ * the exact answer is printed in the regular format.
+ */
+public class CalculateAverage_13 {
+
+    private static final String FILE = "./measurements.txt";
+
+    private static final long BLOCK_SIZE = CalculateAverage_5.parseSize(System.getProperty("block.size", "1m"));
+    private static final double SAMPLE_RATE = Double.parseDouble(System.getProperty("sample.rate", "0.02"));
+    private static final long TIME_BUDGET = Long.getLong("time.budget", -1);
+    private static final long REFINE_INTERVAL = Long.getLong("refine.interval", 1000);
+    private static final double Z_95 = 1.96;
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        final File file = new File(args.length > 0 ? args[0] : FILE);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ); Arena arena = Arena.ofShared()) {
+            MemorySegment mappedFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            Sampler sampler = new Sampler(mappedFile, Long.getLong("seed", System.nanoTime()));
+            int threads = Runtime.getRuntime().availableProcessors();
+
+            int target = TIME_BUDGET >= 0 ? sampler.blockCount() : (int) Math.clamp(Math.ceil(sampler.blockCount() * SAMPLE_RATE), 1, sampler.blockCount());
+            long deadline = TIME_BUDGET >= 0 ? startTime + TIME_BUDGET : Long.MAX_VALUE;
+            sampler.run(threads, target, deadline);
+            System.out.println(sampler.format());
+            System.out.println(sampler.summary(System.currentTimeMillis() - startTime));
+
+            if (Boolean.getBoolean("refine") && sampler.done() < sampler.blockCount()) {
+                Thread refinement = new Thread(() -> {
+                    try {
+                        sampler.run(threads, sampler.blockCount(), Long.MAX_VALUE);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                refinement.start();
+                refinement.join(REFINE_INTERVAL);
+                while (refinement.isAlive()) {
+                    System.out.println(sampler.format());
+                    System.out.println(sampler.summary(System.currentTimeMillis() - startTime));
+                    refinement.join(REFINE_INTERVAL);
+                }
+                System.out.println(sampler.exact());
+            }
+        }
+
+        long endTime = System.currentTimeMillis();
+
+        String time = String.format("%d min, %d sec",
+                TimeUnit.MILLISECONDS.toMinutes(endTime - startTime),
+                TimeUnit.MILLISECONDS.toSeconds(endTime - startTime) -
+                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(endTime - startTime)));
+        System.out.println("Solution completed in " + time);
+    }
+
+    /**
+     * Per-station sums over the sampled blocks, with {@code x} being a block's row count and {@code y} its sum of values.
+     */
+    private static class Accumulator {
+        long count;
+        long sum;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        double sumXX;
+        double sumXY;
+        double sumYY;
+
+        synchronized void add(long blockCount, long blockSum, long blockMin, long blockMax) {
+            count += blockCount;
+            sum += blockSum;
+            min = Math.min(min, blockMin);
+            max = Math.max(max, blockMax);
+            sumXX += (double) blockCount * blockCount;
+            sumXY += (double) blockCount * blockSum;
+            sumYY += (double) blockSum * blockSum;
+        }
+    }
+
+    private static class Sampler {
+        private final MemorySegment file;
+        private final int[] order;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger done = new AtomicInteger();
+        private final Map<String, Accumulator> stations = new ConcurrentHashMap<>();
+
+        Sampler(MemorySegment file, long seed) {
+            this.file = file;
+            int blockCount = (int) Math.max(1, (file.byteSize() + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            order = new int[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                order[i] = i;
+            }
+            // Fisher-Yates
+            Random random = new Random(seed);
+            for (int i = blockCount - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+        }
+
+        int blockCount() {
+            return order.length;
+        }
+
+        int done() {
+            return done.get();
+        }
+
+        /**
+         * Aggregates blocks in random order with the given number of threads, until {@code target} blocks have been
+         * claimed in total or the deadline has passed.
+         */
+        void run(int threads, int target, long deadline) throws InterruptedException {
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Thread(() -> {
+                    while (System.currentTimeMillis() < deadline || done.get() == 0) {
+                        int index = next.getAndIncrement();
+                        if (index >= target) {
+                            next.decrementAndGet();
+                            return;
+                        }
+                        aggregate(order[index]);
+                        done.incrementAndGet();
+                    }
+                });
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+
+        private void aggregate(int block) {
+            long start = lineStart(block * BLOCK_SIZE);
+            long end = lineStart((block + 1) * BLOCK_SIZE);
+            StationTable table = new StationTable(64);
+            table.addLines(file, start, end, end == file.byteSize());
+            for (int slot = 0; slot < table.capacity(); slot++) {
+                if (table.occupied(slot)) {
+                    stations.computeIfAbsent(table.decodeName(slot), name -> new Accumulator())
+                            .add(table.count(slot), table.sum(slot), table.min(slot), table.max(slot));
+                }
+            }
+        }
+
+        private long lineStart(long pos) {
+            if (pos >= file.byteSize()) {
+                return file.byteSize();
+            }
+            while (pos > 0 && pos < file.byteSize() && file.get(JAVA_BYTE, pos - 1) != '\n') {
+                pos++;
+            }
+            return pos;
+        }
+
+        String format() {
+            int m = done.get();
+            int total = order.length;
+            int scale = FixedPoint.DEFAULT_SCALE;
+            String format = "%." + scale + "f";
+
+            TreeMap<String, String> result = new TreeMap<>();
+            for (Map.Entry<String, Accumulator> entry : stations.entrySet()) {
+                Accumulator acc = entry.getValue();
+                synchronized (acc) {
+                    double ratio = (double) acc.sum / acc.count;
+                    String interval = "";
+                    if (m >= 2) {
+                        double meanCount = (double) acc.count / m;
+                        double residuals = Math.max(0, acc.sumYY - 2 * ratio * acc.sumXY + ratio * ratio * acc.sumXX) / (m - 1);
+                        double variance = (1 - (double) m / total) * residuals / (m * meanCount * meanCount);
+                        interval = "+-" + String.format(format, FixedPoint.toDouble(Math.round(Z_95 * Math.sqrt(variance)), scale));
+                    }
+                    result.put(entry.getKey(), String.format(format, FixedPoint.toDouble(acc.min, scale)) + "/"
+                            + String.format(format, FixedPoint.toDouble(Math.round(ratio), scale)) + interval + "/"
+                            + String.format(format, FixedPoint.toDouble(acc.max, scale))
+                            + " (n~" + Math.round((double) acc.count * total / m) + ")");
+                }
+            }
+
+            StringJoiner joiner = new StringJoiner(", ", "{", "}");
+            result.forEach((name, stats) -> joiner.add(name + "=" + stats));
+            return joiner.toString();
+        }
+
+        String summary(long elapsed) {
+            return String.format("Approximate: sampled %d of %d blocks (%.1f%%) in %d ms, +- is the 95%% confidence interval of the mean",
+                    done.get(), order.length, 100.0 * done.get() / order.length, elapsed);
+        }
+
+        /**
+         * Returns the result in the regular format; only exact once all blocks are done.
+         */
+        TreeMap<String, StationTable.Stats> exact() {
+            TreeMap<String, StationTable.Stats> result = new TreeMap<>();
+            stations.forEach((name, acc) -> result.put(name, new StationTable.Stats(acc.count, acc.sum, acc.min, acc.max, FixedPoint.DEFAULT_SCALE)));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SequencedMap;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates several queries over the same file in one scan, instead of one full run per report. The queries are given
+ * with {@code -Dqueries}, separated by {@code ;}, or one per line in a file with {@code -Dqueries=@<file>}. Each query
+ * consists of comma-separated options:
+ * <ul>
+ * <li>{@code name=<label>}: label to print the result with, default the query itself</li>
+ * <li>{@code prefix=<p>}: only stations whose name starts with {@code p}</li>
+ * <li>{@code group=<file>}: roll stations up into groups, e.g. countries, by a file of {@code <station>;<group>} lines;
+ * see {@link GroupDictionary}</li>
+ * <li>{@code value<op><x>}: only rows whose value matches, with {@code op} one of {@code > >= < <= =}</li>
+ * <li>{@code stats=<s1>/<s2>/...}: the statistics to print, out of {@code min}, {@code mean}, {@code max},
+ * {@code count}, {@code sum}; default {@code min/mean/max}</li>
+ * <li>{@code top}, {@code by}, {@code order}, {@code where}: select from the result as described in
+ * {@link StationQuery}</li>
+ * </ul>
+ * An empty query or {@code all} returns all stations. E.g.
+ * {@code -Dqueries="all;prefix=A;group=countries.txt,top=5,by=mean;top=20,by=max;value>30,stats=count"}.
+ * <p>
+ * Every row is parsed once and aggregated per station. Prefix filters, groupings and selections only depend on the
+ * station, so those queries are derived from the per-station aggregate after the scan. Only queries with a value
+ * filter need rows fanned out to them, each into an accumulator of its own.
+ */
+public class CalculateAverage_14 {
+
+    private static final String FILE = "./measurements.txt";
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        final File file = new File(args.length > 0 ? args[0] : FILE);
+        final long length = file.length();
+        final List<BatchQuery> queries = BatchQuery.parseAll(System.getProperty("queries", "all"));
+        final BatchQuery[] rowQueries = queries.stream().filter(q -> q.rowFilter() != null).toArray(BatchQuery[]::new);
+        final int chunkCount = Runtime.getRuntime().availableProcessors();
+        final StationTable[] stationTables = new StationTable[chunkCount];
+        final StationTable[][] rowTables = new StationTable[chunkCount][rowQueries.length];
+        final long[] chunkStartOffsets = new long[chunkCount];
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); Arena arena = Arena.ofShared()) {
+            for (int i = 1; i < chunkStartOffsets.length; i++) {
+                var start = length * i / chunkStartOffsets.length;
+                raf.seek(start);
+                int b;
+                do {
+                    b = raf.read();
+                } while (b != '\n' && b != -1);
+                chunkStartOffsets[i] = raf.getFilePointer();
+            }
+
+            final var mappedFile = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length, arena);
+            Thread[] threads = new Thread[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                final int index = i;
+                final long chunkStart = chunkStartOffsets[i];
+                final long chunkEnd = (i + 1 < chunkCount) ? chunkStartOffsets[i + 1] : length;
+                threads[i] = new Thread(() -> {
+                    MemorySegment chunk = mappedFile.asSlice(chunkStart, chunkEnd - chunkStart);
+                    StationTable stations = stationTables[index] = new StationTable();
+                    if (rowQueries.length == 0) {
+                        stations.addLines(chunk, 0, chunk.byteSize(), true);
+                        return;
+                    }
+
+                    StationTable[] tables = rowTables[index];
+                    for (int q = 0; q < tables.length; q++) {
+                        tables[q] = new StationTable();
+                    }
+                    MeasurementSpliterator.of(chunk).forEachRemaining(line -> {
+                        stations.add(line.segment(), line.nameOffset(), line.nameLength(), line.value());
+                        for (int q = 0; q < rowQueries.length; q++) {
+                            if (rowQueries[q].rowFilter().test(line.value())) {
+                                tables[q].add(line.segment(), line.nameOffset(), line.nameLength(), line.value());
+                            }
+                        }
+                    });
+                });
+            }
+
+            for (Thread thread : threads) {
+                thread.start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        StationTable stations = new StationTable();
+        for (StationTable table : stationTables) {
+            stations.merge(table);
+        }
+        StationTable[] rowResults = new StationTable[rowQueries.length];
+        for (int q = 0; q < rowQueries.length; q++) {
+            rowResults[q] = new StationTable();
+            for (StationTable[] tables : rowTables) {
+                rowResults[q].merge(tables[q]);
+            }
+        }
+
+        int rowQuery = 0;
+        for (BatchQuery query : queries) {
+            StationTable source = query.rowFilter() != null ? rowResults[rowQuery++] : stations;
+            System.out.println(query.label() + ": " + query.format(query.evaluate(source)));
+        }
+
+        long endTime = System.currentTimeMillis();
+
+        String time = String.format("%d min, %d sec",
+                TimeUnit.MILLISECONDS.toMinutes(endTime - startTime),
+                TimeUnit.MILLISECONDS.toSeconds(endTime - startTime) -
+                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(endTime - startTime)));
+        System.out.println("Solution completed in " + time + " (" + queries.size() + " queries, " + rowQueries.length + " with row filters)");
+    }
+
+    private record RowFilter(String operator, long threshold) {
+
+        static RowFilter parse(String condition) {
+            String operator = condition.substring(5, condition.length() > 6 && condition.charAt(6) == '=' ? 7 : 6);
+            if (!List.of(">", ">=", "<", "<=", "=").contains(operator)) {
+                throw new IllegalArgumentException("Invalid value filter: " + condition);
+            }
+            byte[] literal = condition.substring(5 + operator.length()).trim().getBytes(StandardCharsets.US_ASCII);
+            return new RowFilter(operator, FixedPoint.parse(MemorySegment.ofArray(literal), 0, literal.length, FixedPoint.DEFAULT_SCALE));
+        }
+
+        boolean test(long value) {
+            return switch (operator) {
+                case ">" -> value > threshold;
+                case ">=" -> value >= threshold;
+                case "<" -> value < threshold;
+                case "<=" -> value <= threshold;
+                default -> value == threshold;
+            };
+        }
+    }
+
+    private record BatchQuery(String label, byte[] prefix, GroupDictionary groups, RowFilter rowFilter, List<StationQuery.Statistic> statistics,
+                              StationQuery selection) {
+
+        static List<BatchQuery> parseAll(String specs) throws IOException {
+            List<String> lines = specs.startsWith("@") ? Files.readAllLines(Path.of(specs.substring(1))) : List.of(specs.split(";"));
+            List<BatchQuery> queries = new ArrayList<>();
+            for (String line : lines) {
+                if (!line.isBlank() || lines.size() == 1) {
+                    queries.add(parse(line.trim()));
+                }
+            }
+            return queries;
+        }
+
+        static BatchQuery parse(String spec) throws IOException {
+            String label = spec.isEmpty() ? "all" : spec;
+            byte[] prefix = new byte[0];
+            GroupDictionary groups = null;
+            RowFilter rowFilter = null;
+            List<StationQuery.Statistic> statistics = List.of(StationQuery.Statistic.MIN, StationQuery.Statistic.MEAN, StationQuery.Statistic.MAX);
+            StringJoiner selection = new StringJoiner(",");
+
+            for (String option : spec.split(",")) {
+                option = option.trim();
+                if (option.isEmpty() || option.equals("all")) {
+                    continue;
+                }
+                if (option.startsWith("value")) {
+                    rowFilter = RowFilter.parse(option);
+                    continue;
+                }
+                String[] keyValue = option.split("=", 2);
+                if (keyValue.length != 2) {
+                    throw new IllegalArgumentException("Invalid query option: " + option);
+                }
+                switch (keyValue[0].trim()) {
+                    case "name" -> label = keyValue[1].trim();
+                    case "prefix" -> prefix = keyValue[1].getBytes(StandardCharsets.UTF_8);
+                    case "group" -> groups = GroupDictionary.load(Path.of(keyValue[1].trim()));
+                    case "stats" -> statistics = Arrays.stream(keyValue[1].split("/"))
+                            .map(s -> StationQuery.Statistic.valueOf(s.trim().toUpperCase()))
+                            .toList();
+                    default -> selection.add(option);
+                }
+            }
+            return new BatchQuery(label, prefix, groups, rowFilter, statistics, selection.length() > 0 ? StationQuery.parse(selection.toString()) : null);
+        }
+
+        /**
+         * Derives this query's result from the per-station aggregate of the rows it applies to.
+         */
+        SequencedMap<String, StationTable.Stats> evaluate(StationTable source) {
+            MemorySegment prefixSegment = MemorySegment.ofArray(prefix);
+            StationTable target = new StationTable(groups != null ? 64 : source.size(), source.scale());
+            for (int slot = 0; slot < source.capacity(); slot++) {
+                if (!source.occupied(slot)) {
+                    continue;
+                }
+                MemorySegment name = source.name(slot);
+                if (name.byteSize() < prefix.length || MemorySegment.mismatch(name, 0, prefix.length, prefixSegment, 0, prefix.length) != -1) {
+                    continue;
+                }
+                if (groups == null) {
+                    target.add(name, 0, (int) name.byteSize(), source.stats(slot));
+                }
+                else {
+                    byte[] group = groups.groupName(groups.groupOf(name)).getBytes(StandardCharsets.UTF_8);
+                    target.add(MemorySegment.ofArray(group), 0, group.length, source.stats(slot));
+                }
+            }
+            return selection != null ? selection.apply(target) : target.toMap();
+        }
+
+        String format(SequencedMap<String, StationTable.Stats> result) {
+            StringJoiner joiner = new StringJoiner(", ", "{", "}");
+            for (Map.Entry<String, StationTable.Stats> entry : result.entrySet()) {
+                StationTable.Stats stats = entry.getValue();
+                String format = "%." + stats.scale() + "f";
+                StringJoiner values = new StringJoiner("/");
+                for (StationQuery.Statistic statistic : statistics) {
+                    values.add(switch (statistic) {
+                        case MIN -> String.format(format, FixedPoint.toDouble(stats.min(), stats.scale()));
+                        case MEAN -> String.format(format, stats.mean());
+                        case MAX -> String.format(format, FixedPoint.toDouble(stats.max(), stats.scale()));
+                        case COUNT -> Long.toString(stats.count());
+                        case SUM -> String.format(format, FixedPoint.toDouble(stats.sum(), stats.scale()));
+                    });
+                }
+                joiner.add(entry.getKey() + "=" + values);
+            }
+            return joiner.toString();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * For a station set known ahead of time: the station dictionary given with {@code -Ddictionary=<file>} (one name per
+ * line, or {@code <station>;<group>} lines) is compiled into a {@link PerfectHash} at startup, so each row is
+ * aggregated into dense arrays indexed by the station's id, after one hash and one compare, without probing. Rows of
+ * stations which aren't in the dictionary fall back to a {@link StationTable}, so the result is exact either way. As the
+ * dictionary's sort order is computed upfront, the result is printed without sorting, unless there were unknown
+ * stations. Results are written as chosen with {@code -Doutput}, see {@link ResultWriter}.
+ */
+public class CalculateAverage_15 {
+
+    private static final String FILE = "./measurements.txt";
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        final String dictionaryFile = System.getProperty("dictionary");
+        if (dictionaryFile == null) {
+            throw new IllegalArgumentException("A station dictionary must be given with -Ddictionary=<file>");
+        }
+        final PerfectHash dictionary = PerfectHash.load(Path.of(dictionaryFile));
+        final File file = new File(args.length > 0 ? args[0] : FILE);
+        final long length = file.length();
+        final int chunkCount = Runtime.getRuntime().availableProcessors();
+        final DenseTable[] denseTables = new DenseTable[chunkCount];
+        final StationTable[] fallbackTables = new StationTable[chunkCount];
+        final long[] chunkStartOffsets = new long[chunkCount];
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); Arena arena = Arena.ofShared()) {
+            for (int i = 1; i < chunkStartOffsets.length; i++) {
+                var start = length * i / chunkStartOffsets.length;
+                raf.seek(start);
+                int b;
+                do {
+                    b = raf.read();
+                } while (b != '\n' && b != -1);
+                chunkStartOffsets[i] = raf.getFilePointer();
+            }
+
+            final var mappedFile = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length, arena);
+            Thread[] threads = new Thread[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                final int index = i;
+                final long chunkStart = chunkStartOffsets[i];
+                final long chunkEnd = (i + 1 < chunkCount) ? chunkStartOffsets[i + 1] : length;
+                threads[i] = new Thread(() -> {
+                    DenseTable dense = denseTables[index] = new DenseTable(dictionary.size());
+                    StationTable fallback = fallbackTables[index] = new StationTable(16);
+                    dense.addLines(dictionary, fallback, mappedFile.asSlice(chunkStart, chunkEnd - chunkStart));
+                });
+            }
+
+            for (Thread thread : threads) {
+                thread.start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        DenseTable dense = new DenseTable(dictionary.size());
+        StationTable fallback = new StationTable(16);
+        for (int i = 0; i < chunkCount; i++) {
+            dense.merge(denseTables[i]);
+            fallback.merge(fallbackTables[i]);
+        }
+
+        if (fallback.size() == 0) {
+            try (ResultWriter writer = ResultWriter.open()) {
+                for (int id : dictionary.sortedIds()) {
+                    if (dense.counts[id] > 0) {
+                        writer.write(dictionary.name(id), dense.stats(id));
+                    }
+                }
+            }
+        }
+        else {
+            System.err.println(fallback.size() + " station(s) not in the dictionary, aggregated in the fallback table");
+            TreeMap<String, StationTable.Stats> result = fallback.toMap();
+            for (int id = 0; id < dictionary.size(); id++) {
+                if (dense.counts[id] > 0) {
+                    result.put(dictionary.name(id), dense.stats(id));
+                }
+            }
+            ResultWriter.writeAll(result);
+        }
+
+        long endTime = System.currentTimeMillis();
+
+        String time = String.format("%d min, %d sec",
+                TimeUnit.MILLISECONDS.toMinutes(endTime - startTime),
+                TimeUnit.MILLISECONDS.toSeconds(endTime - startTime) -
+                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(endTime - startTime)));
+        System.out.println("Solution completed in " + time);
+    }
+
+    /**
+     * Count, sum, min and max per dictionary id, in primitive arrays.
+     */
+    private static class DenseTable {
+        private final int scale = FixedPoint.DEFAULT_SCALE;
+        private final long[] counts;
+        private final long[] sums;
+        private final long[] mins;
+        private final long[] maxs;
+
+        DenseTable(int size) {
+            counts = new long[size];
+            sums = new long[size];
+            mins = new long[size];
+            maxs = new long[size];
+            Arrays.fill(mins, Long.MAX_VALUE);
+            Arrays.fill(maxs, Long.MIN_VALUE);
+        }
+
+        /**
+         * Adds all lines of the segment, including a final line without line break; rows of unknown stations go to the
+         * fallback table.
+         */
+        void addLines(PerfectHash dictionary, StationTable fallback, MemorySegment segment) {
+            long end = segment.byteSize();
+            while (end > 0 && segment.get(JAVA_BYTE, end - 1) != '\n') {
+                end--;
+            }
+            addLines(dictionary, fallback, segment, end);
+            if (end < segment.byteSize()) {
+                MemorySegment lastLine = StationTable.terminated(segment, end, segment.byteSize());
+                addLines(dictionary, fallback, lastLine, lastLine.byteSize());
+            }
+        }
+
+        private void addLines(PerfectHash dictionary, StationTable fallback, MemorySegment segment, long end) {
+            for (long cursor = 0; cursor < end;) {
+                long semicolonPos = cursor;
+                long hash = PerfectHash.FNV_OFFSET;
+                byte b;
+                while ((b = segment.get(JAVA_BYTE, semicolonPos)) != ';') {
+                    hash = (hash ^ (b & 0xFF)) * PerfectHash.FNV_PRIME;
+                    semicolonPos++;
+                }
+
+                long valueStart = semicolonPos + 1;
+                long value;
+                long lineEnd;
+                long packed = scale > 0 ? FixedPoint.parseShort(segment, valueStart) : FixedPoint.NO_SHORT_FORM;
+                if (packed != FixedPoint.NO_SHORT_FORM) {
+                    value = FixedPoint.fromTenths(packed >> 8, scale);
+                    lineEnd = valueStart + (packed & 0xFF);
+                }
+                else {
+                    lineEnd = valueStart;
+                    while (segment.get(JAVA_BYTE, lineEnd) != '\n') {
+                        lineEnd++;
+                    }
+                    value = FixedPoint.parse(segment, valueStart, lineEnd, scale);
+                }
+
+                int nameLength = (int) (semicolonPos - cursor);
+                int id = dictionary.lookup(hash, segment, cursor, nameLength);
+                if (id >= 0) {
+                    counts[id]++;
+                    sums[id] += value;
+                    mins[id] = Math.min(mins[id], value);
+                    maxs[id] = Math.max(maxs[id], value);
+                }
+                else {
+                    fallback.add(segment, cursor, nameLength, value);
+                }
+                cursor = lineEnd + 1;
+            }
+        }
+
+        void merge(DenseTable other) {
+            for (int id = 0; id < counts.length; id++) {
+                counts[id] += other.counts[id];
+                sums[id] += other.sums[id];
+                mins[id] = Math.min(mins[id], other.mins[id]);
+                maxs[id] = Math.max(maxs[id], other.maxs[id]);
+            }
+        }
+
+        StationTable.Stats stats(int id) {
+            return new StationTable.Stats(counts[id], sums[id], mins[id], maxs[id], scale);
+        }
+    }
+}
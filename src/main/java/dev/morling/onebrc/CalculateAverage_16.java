@@ -0,0 +1,164 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * For many small files, e.g. the few KB each that edge collectors write, where opening a file, computing chunk
+ * boundaries and starting {@code availableProcessors()} platform threads costs far more than parsing it: each file is
+ * opened, read and parsed by a virtual thread of its own. The arguments are files, or directories whose regular files
+ * are all processed, recursively (default {@code ./measurements.txt}).
+ * <p>
+ * Open descriptors are bounded by a semaphore ({@code -Dopen.files}, default 256): the directory walk takes a permit
+ * before starting a file's thread, and the thread returns it as soon as the file is read and closed, so parsing doesn't
+ * hold a descriptor. Files are read whole into buffers from a pool ({@code -Dbuffer.size}, default 64k; larger files
+ * get a buffer of their own), and parsed into a {@link StationTable} borrowed from a pool for the time of one file. So
+ * there are only about as many tables as files parsed at the same time, and only those are merged at the end, instead
+ * of one table per file. As files read but not parsed yet don't count against {@code -Dopen.files} anymore, the memory
+ * of the buffers in use is bounded by a second semaphore ({@code -Dbuffer.memory}, default 256m), taken before a file's
+ * buffer is allocated or borrowed and returned after it's parsed; a file larger than that takes all of it.
+ * <p>
+ * If processing a file fails, including with an {@link Error} such as running out of memory, no further files are
+ * started and the failure is rethrown once the running ones are done.
+ * <p>
+ * The number of files and their rate are logged to stderr. Results are written as chosen with {@code -Doutput}, see
+ * {@link ResultWriter}.
+ */
+public class CalculateAverage_16 {
+
+    private static final String FILE = "./measurements.txt";
+    private static final int OPEN_FILES = Integer.getInteger("open.files", 256);
+    private static final int BUFFER_SIZE = (int) CalculateAverage_5.parseSize(System.getProperty("buffer.size", "64k"));
+    // the buffer memory limit, in permits of 1 KiB
+    private static final int MEMORY_PERMITS = (int) Math.min(CalculateAverage_5.parseSize(System.getProperty("buffer.memory", "256m")) / 1024, Integer.MAX_VALUE);
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        Semaphore openFiles = new Semaphore(OPEN_FILES);
+        Semaphore bufferMemory = new Semaphore(MEMORY_PERMITS);
+        Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        Queue<StationTable> tables = new ConcurrentLinkedQueue<>();
+        LongAdder fileCount = new LongAdder();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String root : args.length > 0 ? args : new String[]{ FILE }) {
+                // the walk passes the attributes it has read anyway, so filtering doesn't cost another stat()
+                try (Stream<Path> files = Files.find(Path.of(root), Integer.MAX_VALUE, (path, attributes) -> attributes.isRegularFile(),
+                        FileVisitOption.FOLLOW_LINKS)) {
+                    for (Iterator<Path> it = files.iterator(); it.hasNext() && failure.get() == null;) {
+                        Path file = it.next();
+                        openFiles.acquire();
+                        executor.execute(() -> {
+                            try {
+                                process(file, openFiles, bufferMemory, buffers, tables);
+                                fileCount.increment();
+                            }
+                            catch (Throwable e) {
+                                failure.compareAndSet(null, new IllegalStateException("Processing " + file + " failed", e));
+                            }
+                        });
+                    }
+                }
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        StationTable result = new StationTable();
+        for (StationTable table : tables) {
+            result.merge(table);
+        }
+        ResultWriter.writeAll(result.toMap());
+
+        long endTime = System.currentTimeMillis();
+        System.err.printf("Processed %,d files at %,.0f files/s%n", fileCount.sum(), fileCount.sum() * 1000.0 / Math.max(1, endTime - startTime));
+
+        String time = String.format("%d min, %d sec",
+                TimeUnit.MILLISECONDS.toMinutes(endTime - startTime),
+                TimeUnit.MILLISECONDS.toSeconds(endTime - startTime) -
+                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(endTime - startTime)));
+        System.out.println("Solution completed in " + time);
+    }
+
+    private static void process(Path file, Semaphore openFiles, Semaphore bufferMemory, Queue<ByteBuffer> buffers, Queue<StationTable> tables)
+            throws Exception {
+        ByteBuffer buffer = null;
+        int memoryPermits = 0;
+        try {
+            try (FileChannel channel = FileChannel.open(file)) {
+                long size = channel.size();
+                if (size + 1 > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("File too large for a single buffer: " + size + " bytes");
+                }
+                // one byte more, for appending a missing final line break
+                int capacity = size + 1 <= BUFFER_SIZE ? BUFFER_SIZE : (int) size + 1;
+                // a file larger than the whole limit takes all of it
+                int permits = (int) Math.min((capacity + 1023L) / 1024, MEMORY_PERMITS);
+                bufferMemory.acquire(permits);
+                memoryPermits = permits;
+                buffer = capacity == BUFFER_SIZE ? pooled(buffers) : ByteBuffer.allocate(capacity);
+                buffer.limit((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                }
+            }
+            finally {
+                openFiles.release();
+            }
+
+            int length = buffer.position();
+            buffer.clear();
+            if (length > 0 && buffer.get(length - 1) != '\n') {
+                buffer.put(length++, (byte) '\n');
+            }
+            StationTable table = tables.poll();
+            if (table == null) {
+                table = new StationTable();
+            }
+            table.addLines(MemorySegment.ofArray(buffer.array()), 0, length);
+            tables.add(table);
+        }
+        finally {
+            if (buffer != null && buffer.capacity() == BUFFER_SIZE) {
+                buffers.add(buffer.clear());
+            }
+            bufferMemory.release(memoryPermits);
+        }
+    }
+
+    private static ByteBuffer pooled(Queue<ByteBuffer> buffers) {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(BUFFER_SIZE);
+    }
+}
@@ -62,7 +62,7 @@ public class CalculateAverage_2 {
     public static void main(String[] args) throws Exception {
         long startTime = System.currentTimeMillis();
 
-        final File file = new File("measurements.txt");
+        final File file = new File(args.length > 0 ? args[0] : FILE);
         final long length = file.length();
         final int chunkCount = Runtime.getRuntime().availableProcessors();
         final StationStats[][] results = new StationStats[chunkCount][];
@@ -72,7 +72,10 @@ public class CalculateAverage_2 {
             for (int i = 1; i < chunkStartOffsets.length; i++) {
                 var start = length * i / chunkStartOffsets.length;
                 raf.seek(start);
-                while (raf.read() != (byte) '\n') {}
+                int b;
+                do {
+                    b = raf.read();
+                } while (b != '\n' && b != -1);
                 start = raf.getFilePointer();
                 chunkStartOffsets[i] = start;
             }
@@ -144,7 +147,7 @@ public class CalculateAverage_2 {
                 var intTemp = (int) Math.round(10 * temp);
 
                 var stats = statsMap.computeIfAbsent(name, k -> new StationStats(name));
-                stats.max += intTemp;
+                stats.sum += intTemp;
                 stats.count++;
                 stats.min = Math.min(stats.min, intTemp);
                 stats.max = Math.max(stats.max, intTemp);
@@ -160,6 +163,10 @@ public class CalculateAverage_2 {
                     return i;
                 }
             }
+            // the last line may end without line break
+            if (b == '\n') {
+                return chunk.byteSize();
+            }
 
             throw new RuntimeException(((char) b) + " not found");
         }
@@ -175,9 +182,9 @@ public class CalculateAverage_2 {
     private static class StationStats implements Comparable<StationStats> {
         String name;
         long sum;
-        int count;
-        int min;
-        int max;
+        long count;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
 
         StationStats(String name) {
             this.name = name;
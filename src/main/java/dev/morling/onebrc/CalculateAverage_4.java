@@ -59,7 +59,7 @@ public class CalculateAverage_4 {
     public static void main(String[] args) throws Exception {
         long startTime = System.currentTimeMillis();
 
-        final File file = new File("measurements.txt");
+        final File file = new File(args.length > 0 ? args[0] : FILE);
         final long length = file.length();
         final int chunkCount = Runtime.getRuntime().availableProcessors();
         final StationStats[][] results = new StationStats[chunkCount][];
@@ -69,7 +69,10 @@ public class CalculateAverage_4 {
             for (int i = 1; i < chunkStartOffsets.length; i++) {
                 var start = length * i / chunkStartOffsets.length;
                 raf.seek(start);
-                while (raf.read() != (byte) '\n') {}
+                int b;
+                do {
+                    b = raf.read();
+                } while (b != '\n' && b != -1);
                 start = raf.getFilePointer();
                 chunkStartOffsets[i] = start;
             }
@@ -119,11 +122,12 @@ public class CalculateAverage_4 {
     }
 
     private static class ChunkProcessor implements Runnable {
-        private static final int HASHTABLE_SIZE = 2048;
+        private static final int INITIAL_HASHTABLE_SIZE = 2048;
         private final MemorySegment chunk;
         private final StationStats[][] results;
         private  final int myIndex;
-        private final StatsAcc[] hashtable = new StatsAcc[HASHTABLE_SIZE];
+        private StatsAcc[] hashtable = new StatsAcc[INITIAL_HASHTABLE_SIZE];
+        private int size;
 
         ChunkProcessor(MemorySegment chunk, StationStats[][] results, int myIndex) {
             this.chunk = chunk;
@@ -141,7 +145,7 @@ public class CalculateAverage_4 {
                 var intTemp = parseTemperature(semicolonPos);
 
                 StatsAcc acc = findAcc(cursor, semicolonPos);
-                acc.max += intTemp;
+                acc.sum += intTemp;
                 acc.count++;
                 acc.min = Math.min(acc.min, intTemp);
                 acc.max = Math.max(acc.max, intTemp);
@@ -156,8 +160,7 @@ public class CalculateAverage_4 {
 
         private StatsAcc findAcc(long cursor, long semicolonPos) {
             int hash = hash(cursor, semicolonPos);
-            int initialPos = hash & (HASHTABLE_SIZE - 1);
-            int slotPos = initialPos;
+            int slotPos = hash & (hashtable.length - 1);
 
             while (true) {
                 var acc = hashtable[slotPos];
@@ -165,6 +168,10 @@ public class CalculateAverage_4 {
                 if (acc == null) {
                     acc = new StatsAcc(hash, cursor, semicolonPos - cursor);
                     hashtable[slotPos] = acc;
+                    // keep at most half of the slots taken, so probe chains stay short and there's always a free slot
+                    if (++size > hashtable.length / 2) {
+                        grow();
+                    }
                     return acc;
                 }
 
@@ -172,9 +179,20 @@ public class CalculateAverage_4 {
                     return acc;
                 }
 
-                slotPos = (slotPos + 1) & (HASHTABLE_SIZE - 1);
-                if (slotPos == initialPos) {
-                    throw new RuntimeException(String.format("hash %x, acc.hash %x", hash, acc.hash));
+                slotPos = (slotPos + 1) & (hashtable.length - 1);
+            }
+        }
+
+        private void grow() {
+            StatsAcc[] old = hashtable;
+            hashtable = new StatsAcc[old.length * 2];
+            for (StatsAcc acc : old) {
+                if (acc != null) {
+                    int slotPos = acc.hash & (hashtable.length - 1);
+                    while (hashtable[slotPos] != null) {
+                        slotPos = (slotPos + 1) & (hashtable.length - 1);
+                    }
+                    hashtable[slotPos] = acc;
                 }
             }
         }
@@ -216,6 +234,10 @@ public class CalculateAverage_4 {
                     return i;
                 }
             }
+            // the last line may end without line break
+            if (b == '\n') {
+                return chunk.byteSize();
+            }
 
             throw new RuntimeException(((char) b) + " not found");
         }
@@ -233,9 +255,9 @@ public class CalculateAverage_4 {
         long nameLen;
         int hash;
         long sum;
-        int count;
-        int min;
-        int max;
+        long count;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
 
         StatsAcc(int hash, long nameOffset, long nameLen) {
             this.hash = hash;
@@ -253,7 +275,7 @@ public class CalculateAverage_4 {
     private static class StationStats implements Comparable<StationStats> {
         String name;
         long sum;
-        int count;
+        long count;
         int min;
         int max;
 
@@ -0,0 +1,619 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Aggregates each worker's part of the file into a {@link StationTable}, with the way bytes get from the file into the
+ * workers being pluggable, so the I/O strategy can be matched to the storage it runs on:
+ * <ul>
+ * <li>{@code -Dio=mmap} (default): maps the whole file once and hands each worker a slice of it</li>
+ * <li>{@code -Dio=window}: each worker maps its range one window ({@code -Dio.window}, default 64m) at a time in a confined arena
+ * and unmaps it when done</li>
+ * <li>{@code -Dio=read}: each worker gets a read-ahead thread which fills two aligned direct buffers
+ * ({@code -Dio.buffer}, default 8m, less than 2g) with positional {@link FileChannel#read(ByteBuffer, long)} calls, so the next buffer is
+ * being read while the current one is parsed</li>
+ * </ul>
+ * Setting a resident memory ceiling with {@code -Dmax.resident} (e.g. {@code 8g}) caps the window or buffer sizes so that all
+ * workers together never have more than that mapped or buffered at any time, and makes {@code window} the default. This
+ * allows processing files much larger than RAM or the address space available to the process.
+ * Mapped segments can be annotated with {@code madvise()} hints, see {@link Madvise}. With {@code -Dpin=true}, workers are
+ * pinned to cores and grouped by NUMA node, see {@link Placement}.
+ * Instead of all stations, a subset can be selected with {@code -Dquery}, e.g. {@code -Dquery=top=20,by=max}; see
+ * {@link StationQuery}.
+ * With {@code -Dlenient=true}, CRLF line breaks, empty lines and a missing final line break are accepted, and malformed
+ * lines are skipped instead of failing the run; {@code -Dquarantine=<file>} additionally writes them with their byte
+ * offsets to the given file. See {@link StationTable#addLines(MemorySegment, long, long, long, boolean, Quarantine)}.
+ * With {@code -Dgroups=<file>}, stations are also rolled up into the groups given by that file of
+ * {@code <station>;<group>} lines, e.g. countries, and the per-group and overall stats are printed after the
+ * per-station ones; see {@link GroupDictionary}.
+ * Results are written as text, CSV, JSON Lines or binary as chosen with {@code -Doutput}, see {@link ResultWriter}; the
+ * group levels are only printed with the text format.
+ * The input file can be passed as first argument, defaulting to {@code ./measurements.txt}.
+ */
+public class CalculateAverage_5 {
+
+    private static final String FILE = "./measurements.txt";
+
+    private static final int PAGE_SIZE = 4096;
+
+    private static final Quarantine QUARANTINE = openQuarantine();
+
+    private static final GroupDictionary GROUPS = loadGroups();
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        final File file = new File(args.length > 0 ? args[0] : FILE);
+        final long length = file.length();
+        final String maxResidentProperty = System.getProperty("max.resident");
+        final long maxResident = maxResidentProperty != null ? parseSize(maxResidentProperty) : Long.MAX_VALUE;
+        final Io io = Io.valueOf(System.getProperty("io", maxResidentProperty != null ? "window" : "mmap").toUpperCase());
+        final int chunkCount = Runtime.getRuntime().availableProcessors();
+        final StationTable[] results = new StationTable[chunkCount];
+        final String query = System.getProperty("query");
+        final long[] chunkStartOffsets = new long[chunkCount];
+        final Placement placement = Boolean.getBoolean("pin") ? Placement.numa(chunkCount) : null;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); Arena arena = Arena.ofShared()) {
+            for (int i = 1; i < chunkStartOffsets.length; i++) {
+                var start = length * i / chunkStartOffsets.length;
+                raf.seek(start);
+                int b;
+                do {
+                    b = raf.read();
+                } while (b != '\n' && b != -1);
+                chunkStartOffsets[i] = raf.getFilePointer();
+            }
+
+            final IoBackend backend = io.open(raf.getChannel(), length, arena, maxResident == Long.MAX_VALUE ? Long.MAX_VALUE : maxResident / chunkCount);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread[] threads = new Thread[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                final int index = i;
+                final long chunkStart = chunkStartOffsets[i];
+                final long chunkEnd = (i + 1 < chunkCount) ? chunkStartOffsets[i + 1] : length;
+                threads[i] = new Thread(() -> {
+                    if (placement != null) {
+                        placement.pinWorker(index);
+                    }
+                    StationTable table = newTable();
+                    try {
+                        backend.process(chunkStart, chunkEnd, table);
+                    }
+                    catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                        return;
+                    }
+                    results[index] = table;
+                });
+            }
+
+            for (Thread thread : threads) {
+                thread.start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (failure.get() != null) {
+                throw new IllegalStateException("Processing " + file + " failed", failure.get());
+            }
+        }
+
+        int reseeds = 0;
+        int overflowed = 0;
+        for (StationTable table : results) {
+            reseeds += table.reseeds();
+            overflowed += table.overflowSize();
+        }
+        if (reseeds > 0 || overflowed > 0) {
+            System.err.println("Long probe chains: " + reseeds + " reseed(s), " + overflowed + " station(s) in overflow indexes");
+        }
+
+        StationTable totals = newTable();
+        for (var table : placement != null ? placement.mergePerNode(results) : results) {
+            totals.merge(table);
+        }
+
+        ResultWriter.writeAll(query != null ? StationQuery.parse(query).apply(totals) : totals.toMap());
+        if (GROUPS != null && ResultWriter.format() == ResultWriter.Format.TEXT) {
+            System.out.println("Groups: " + totals.groupTotals());
+            System.out.println("Total: " + totals.total());
+        }
+        if (QUARANTINE != null) {
+            QUARANTINE.close();
+            if (QUARANTINE.count() > 0) {
+                System.err.println("Skipped " + QUARANTINE.count() + " malformed line(s)");
+            }
+        }
+
+        long endTime = System.currentTimeMillis();
+
+        String time = String.format("%d min, %d sec",
+                TimeUnit.MILLISECONDS.toMinutes(endTime - startTime),
+                TimeUnit.MILLISECONDS.toSeconds(endTime - startTime) -
+                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(endTime - startTime)));
+        System.out.println("Solution completed in " + time + " (io=" + io.name().toLowerCase() + ")");
+    }
+
+    /**
+     * Adds the lines of a piece of the input, of which {@code position} is the offset within the file, including a final
+     * line without line break, if this is the end of the worker's range.
+     */
+    private static void addLines(StationTable table, MemorySegment segment, long limit, long position, boolean endOfRange) {
+        if (QUARANTINE == null) {
+            table.addLines(segment, 0, limit, endOfRange);
+        }
+        else {
+            table.addLines(segment, 0, limit, position, endOfRange, QUARANTINE);
+        }
+    }
+
+    private static StationTable newTable() {
+        return new StationTable(1024, FixedPoint.DEFAULT_SCALE, GROUPS);
+    }
+
+    private static GroupDictionary loadGroups() {
+        String file = System.getProperty("groups");
+        try {
+            return file != null ? GroupDictionary.load(Path.of(file)) : null;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Quarantine openQuarantine() {
+        String file = System.getProperty("quarantine");
+        try {
+            return file != null ? Quarantine.open(Path.of(file)) : Boolean.getBoolean("lenient") ? Quarantine.counting() : null;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static long parseSize(String size) {
+        String s = size.trim().toLowerCase();
+        long unit = switch (s.charAt(s.length() - 1)) {
+            case 'k' -> 1L << 10;
+            case 'm' -> 1L << 20;
+            case 'g' -> 1L << 30;
+            default -> 1L;
+        };
+        return Long.parseLong(unit == 1L ? s : s.substring(0, s.length() - 1)) * unit;
+    }
+
+    private enum Io {
+        MMAP {
+            @Override
+            IoBackend open(FileChannel channel, long length, Arena arena, long maxResidentPerWorker) throws IOException {
+                if (maxResidentPerWorker != Long.MAX_VALUE) {
+                    throw new IllegalArgumentException("-Dio=mmap maps the whole file and can't be combined with -Dmax.resident");
+                }
+                MemorySegment mappedFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, length, arena);
+                return (start, end, table) -> {
+                    MemorySegment slice = mappedFile.asSlice(start, end - start);
+                    Madvise.beforeScan(slice);
+                    if (!Madvise.DONTNEED) {
+                        addLines(table, slice, slice.byteSize(), start, true);
+                        return;
+                    }
+
+                    // process in steps, so that the pages behind the cursor can be dropped
+                    for (long pos = 0; pos < slice.byteSize();) {
+                        MemorySegment step = slice.asSlice(pos, Math.min(Madvise.DONTNEED_STEP, slice.byteSize() - pos));
+                        if (pos + step.byteSize() < slice.byteSize()) {
+                            step = step.asSlice(0, lastLineEnd(step));
+                        }
+                        addLines(table, step, step.byteSize(), start + pos, pos + step.byteSize() == slice.byteSize());
+                        Madvise.afterScan(step);
+                        pos += step.byteSize();
+                    }
+                };
+            }
+        },
+        WINDOW {
+            @Override
+            IoBackend open(FileChannel channel, long length, Arena arena, long maxResidentPerWorker) {
+                long windowSize = Math.min(parseSize(System.getProperty("io.window", "64m")), maxResidentPerWorker);
+                return new WindowedBackend(channel, windowSize);
+            }
+        },
+        READ {
+            @Override
+            IoBackend open(FileChannel channel, long length, Arena arena, long maxResidentPerWorker) {
+                // two buffers per worker, each rounded up to whole pages plus one page of alignment slack
+                long requested = parseSize(System.getProperty("io.buffer", "8m"));
+                if (requested > ReadAheadBackend.MAX_BUFFER_SIZE) {
+                    throw new IllegalArgumentException("-Dio.buffer must not exceed " + ReadAheadBackend.MAX_BUFFER_SIZE + " bytes: " + requested);
+                }
+                long bufferSize = Math.min(requested, maxResidentPerWorker / 2 - 2 * PAGE_SIZE);
+                if (bufferSize <= 0) {
+                    throw new IllegalArgumentException("-Dmax.resident too small for " + Runtime.getRuntime().availableProcessors() + " workers");
+                }
+                return new ReadAheadBackend(channel, (int) bufferSize);
+            }
+        };
+
+        abstract IoBackend open(FileChannel channel, long length, Arena arena, long maxResidentPerWorker) throws IOException;
+    }
+
+    /**
+     * Feeds a line-aligned range of the file to a {@link StationTable}, in one or more line-aligned pieces.
+     */
+    private interface IoBackend {
+        void process(long start, long end, StationTable table) throws IOException;
+    }
+
+    private static class WindowedBackend implements IoBackend {
+        private final FileChannel channel;
+        private final long windowSize;
+
+        WindowedBackend(FileChannel channel, long windowSize) {
+            this.channel = channel;
+            this.windowSize = windowSize;
+        }
+
+        @Override
+        public void process(long start, long end, StationTable table) throws IOException {
+            long pos = start;
+            while (pos < end) {
+                long windowEnd = Math.min(pos + windowSize, end);
+                try (Arena arena = Arena.ofConfined()) {
+                    MemorySegment window = channel.map(FileChannel.MapMode.READ_ONLY, pos, windowEnd - pos, arena);
+                    Madvise.beforeScan(window);
+                    long usable = windowEnd == end ? window.byteSize() : lastLineEnd(window);
+                    addLines(table, window, usable, pos, windowEnd == end);
+                    pos += usable;
+                }
+            }
+        }
+    }
+
+    private static class ReadAheadBackend implements IoBackend {
+        private static final ByteBuffer END_OF_RANGE = ByteBuffer.allocate(0);
+        // the largest buffer whose page-rounded capacity plus alignment slack still fits into a ByteBuffer
+        static final int MAX_BUFFER_SIZE = (Integer.MAX_VALUE & -PAGE_SIZE) - PAGE_SIZE;
+
+        private final FileChannel channel;
+        private final int bufferSize;
+
+        ReadAheadBackend(FileChannel channel, int bufferSize) {
+            this.channel = channel;
+            this.bufferSize = bufferSize;
+        }
+
+        @Override
+        public void process(long start, long end, StationTable table) throws IOException {
+            BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(2);
+            BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(3);
+            free.add(allocateAligned(bufferSize));
+            free.add(allocateAligned(bufferSize));
+
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread reader = new Thread(() -> readAhead(start, end, free, filled, failure));
+            reader.setDaemon(true);
+            reader.start();
+
+            try {
+                long pos = start;
+                for (ByteBuffer buffer = filled.take(); buffer != END_OF_RANGE; buffer = filled.take()) {
+                    addLines(table, MemorySegment.ofBuffer(buffer), buffer.remaining(), pos, pos + buffer.remaining() == end);
+                    pos += buffer.remaining();
+                    free.put(buffer);
+                }
+                reader.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            if (failure.get() != null) {
+                throw new IOException("Reading ahead from " + start + " to " + end + " failed", failure.get());
+            }
+        }
+
+        private static ByteBuffer allocateAligned(int size) {
+            int capacity = (size + PAGE_SIZE - 1) & -PAGE_SIZE;
+            return ByteBuffer.allocateDirect(capacity + PAGE_SIZE).alignedSlice(PAGE_SIZE);
+        }
+
+        /**
+         * Fills the free buffers and queues them, followed by {@link #END_OF_RANGE}; that is also queued if reading fails,
+         * with the failure kept for {@link #process(long, long, StationTable)} to rethrow.
+         */
+        private void readAhead(long start, long end, BlockingQueue<ByteBuffer> free, BlockingQueue<ByteBuffer> filled, AtomicReference<Throwable> failure) {
+            try {
+                long pos = start;
+                while (pos < end) {
+                    ByteBuffer buffer = free.take();
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), end - pos));
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, pos + buffer.position()) < 0) {
+                            throw new IOException("Unexpected end of file at " + (pos + buffer.position()));
+                        }
+                    }
+                    buffer.flip();
+                    if (pos + buffer.limit() < end) {
+                        // the partial line at the end is read again as part of the next buffer
+                        buffer.limit((int) lastLineEnd(MemorySegment.ofBuffer(buffer)));
+                    }
+                    pos += buffer.limit();
+                    filled.put(buffer);
+                }
+                filled.put(END_OF_RANGE);
+            }
+            catch (Throwable e) {
+                failure.set(e);
+                filled.clear();
+                filled.add(END_OF_RANGE);
+            }
+        }
+    }
+
+    /**
+     * Access pattern hints for mapped segments, passed to {@code madvise(2)} via a downcall into libc:
+     * <ul>
+     * <li>{@code -Dmadvise=true}: {@code MADV_SEQUENTIAL} and {@code MADV_WILLNEED} on each worker's slice, so the kernel reads
+     * ahead aggressively and can reclaim pages right after they have been passed</li>
+     * <li>{@code -Dmadvise.hugepage=true}: additionally {@code MADV_HUGEPAGE}</li>
+     * <li>{@code -Dmadvise.dontneed=true}: {@code MADV_DONTNEED} on the parts of a slice which have been processed already</li>
+     * </ul>
+     * The advice values can't be combined into one call, so each is passed separately. If libc or
+     * {@code madvise()} can't be found, or a call fails, hints are just skipped; they never affect the result.
+     * Run with {@code --enable-native-access=ALL-UNNAMED} to avoid the JDK's restricted method warning.
+     */
+    private static class Madvise {
+        static final boolean ENABLED = Boolean.getBoolean("madvise");
+        static final boolean HUGEPAGE = Boolean.getBoolean("madvise.hugepage");
+        static final boolean DONTNEED = Boolean.getBoolean("madvise.dontneed");
+        static final long DONTNEED_STEP = 64L << 20;
+
+        private static final int MADV_SEQUENTIAL = 2;
+        private static final int MADV_WILLNEED = 3;
+        private static final int MADV_DONTNEED = 4;
+        private static final int MADV_HUGEPAGE = 14;
+
+        private static final MethodHandle MADVISE = ENABLED || HUGEPAGE || DONTNEED ? lookup() : null;
+        private static volatile boolean failureReported;
+
+        private static MethodHandle lookup() {
+            try {
+                Linker linker = Linker.nativeLinker();
+                return linker.defaultLookup().find("madvise")
+                        .map(address -> linker.downcallHandle(address, FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT)))
+                        .orElseThrow(() -> new UnsupportedOperationException("madvise() not found"));
+            }
+            catch (Throwable e) {
+                System.err.println("madvise hints disabled: " + e);
+                return null;
+            }
+        }
+
+        static void beforeScan(MemorySegment segment) {
+            if (ENABLED) {
+                advise(segment, MADV_SEQUENTIAL, false);
+                advise(segment, MADV_WILLNEED, false);
+            }
+            if (HUGEPAGE) {
+                advise(segment, MADV_HUGEPAGE, false);
+            }
+        }
+
+        static void afterScan(MemorySegment segment) {
+            if (DONTNEED) {
+                // only drop pages lying completely within the segment, the neighbouring ones are still in use
+                advise(segment, MADV_DONTNEED, true);
+            }
+        }
+
+        private static void advise(MemorySegment segment, int advice, boolean inner) {
+            if (MADVISE == null) {
+                return;
+            }
+
+            long start = segment.address();
+            long end = start + segment.byteSize();
+            start = inner ? (start + PAGE_SIZE - 1) & -PAGE_SIZE : start & -PAGE_SIZE;
+            end = inner ? end & -PAGE_SIZE : (end + PAGE_SIZE - 1) & -PAGE_SIZE;
+            if (start >= end) {
+                return;
+            }
+
+            int result;
+            try {
+                result = (int) MADVISE.invokeExact(MemorySegment.ofAddress(start), end - start, advice);
+            }
+            catch (Throwable e) {
+                result = -1;
+            }
+            if (result != 0 && !failureReported) {
+                failureReported = true;
+                System.err.println("madvise(" + advice + ") failed, continuing without hints");
+            }
+        }
+    }
+
+    /**
+     * Pins workers to cores, reading the NUMA topology from {@code /sys/devices/system/node}. Workers are assigned to nodes
+     * in proportion to their core count and in index order, so all workers of one node process a contiguous range of the
+     * file, and their results are merged on that node before the final merge. Without topology information all online cores
+     * are treated as a single node. If {@code sched_setaffinity()} isn't available or fails, workers just run unpinned.
+     */
+    private static class Placement {
+        private static final MethodHandle SCHED_SETAFFINITY = lookup();
+        private static volatile boolean failureReported;
+
+        private final int[][] nodeCpus;
+        private final int[] workerNode;
+        private final int[] workerCpu;
+
+        private Placement(int[][] nodeCpus, int workers) {
+            this.nodeCpus = nodeCpus;
+            this.workerNode = new int[workers];
+            this.workerCpu = new int[workers];
+
+            int totalCpus = Arrays.stream(nodeCpus).mapToInt(cpus -> cpus.length).sum();
+            int cpusSoFar = 0;
+            int worker = 0;
+            for (int node = 0; node < nodeCpus.length; node++) {
+                cpusSoFar += nodeCpus[node].length;
+                int lastWorker = (int) ((long) workers * cpusSoFar / totalCpus);
+                for (int i = 0; worker < lastWorker; i++, worker++) {
+                    workerNode[worker] = node;
+                    workerCpu[worker] = nodeCpus[node][i % nodeCpus[node].length];
+                }
+            }
+        }
+
+        static Placement numa(int workers) throws IOException {
+            List<int[]> nodes = new ArrayList<>();
+            Path nodeDir = Path.of("/sys/devices/system/node");
+            if (Files.isDirectory(nodeDir)) {
+                try (var entries = Files.list(nodeDir)) {
+                    for (Path node : entries.filter(p -> p.getFileName().toString().matches("node\\d+")).sorted().toList()) {
+                        int[] cpus = parseCpuList(Files.readString(node.resolve("cpulist")));
+                        if (cpus.length > 0) {
+                            nodes.add(cpus);
+                        }
+                    }
+                }
+            }
+            if (nodes.isEmpty()) {
+                Path online = Path.of("/sys/devices/system/cpu/online");
+                nodes.add(Files.exists(online)
+                        ? parseCpuList(Files.readString(online))
+                        : IntStream.range(0, Runtime.getRuntime().availableProcessors()).toArray());
+            }
+            return new Placement(nodes.toArray(int[][]::new), workers);
+        }
+
+        static int[] parseCpuList(String cpuList) {
+            return Arrays.stream(cpuList.trim().split(","))
+                    .filter(range -> !range.isEmpty())
+                    .flatMapToInt(range -> {
+                        int dash = range.indexOf('-');
+                        return dash < 0
+                                ? IntStream.of(Integer.parseInt(range))
+                                : IntStream.rangeClosed(Integer.parseInt(range.substring(0, dash)), Integer.parseInt(range.substring(dash + 1)));
+                    })
+                    .toArray();
+        }
+
+        void pinWorker(int worker) {
+            pin(workerCpu[worker]);
+        }
+
+        /**
+         * Merges the results of each node's workers on a thread pinned to that node, returning one table per node.
+         */
+        StationTable[] mergePerNode(StationTable[] results) throws InterruptedException {
+            StationTable[] nodeResults = new StationTable[nodeCpus.length];
+            Thread[] threads = new Thread[nodeCpus.length];
+            for (int node = 0; node < nodeCpus.length; node++) {
+                final int index = node;
+                threads[node] = new Thread(() -> {
+                    pin(nodeCpus[index][0]);
+                    StationTable nodeTable = newTable();
+                    for (int worker = 0; worker < results.length; worker++) {
+                        if (workerNode[worker] == index) {
+                            nodeTable.merge(results[worker]);
+                        }
+                    }
+                    nodeResults[index] = nodeTable;
+                });
+                threads[node].start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            return nodeResults;
+        }
+
+        private static MethodHandle lookup() {
+            try {
+                Linker linker = Linker.nativeLinker();
+                return linker.defaultLookup().find("sched_setaffinity")
+                        .map(address -> linker.downcallHandle(address, FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, ADDRESS)))
+                        .orElseThrow(() -> new UnsupportedOperationException("sched_setaffinity() not found"));
+            }
+            catch (Throwable e) {
+                System.err.println("Thread pinning disabled: " + e);
+                return null;
+            }
+        }
+
+        private static void pin(int cpu) {
+            if (SCHED_SETAFFINITY == null) {
+                return;
+            }
+
+            int result;
+            try (Arena arena = Arena.ofConfined()) {
+                // cpu_set_t is a bit mask, in units of unsigned long
+                MemorySegment mask = arena.allocateArray(JAVA_LONG, cpu / 64 + 1);
+                mask.setAtIndex(JAVA_LONG, cpu / 64, 1L << (cpu % 64));
+                // pid 0 is the calling thread
+                result = (int) SCHED_SETAFFINITY.invokeExact(0, mask.byteSize(), mask);
+            }
+            catch (Throwable e) {
+                result = -1;
+            }
+            if (result != 0 && !failureReported) {
+                failureReported = true;
+                System.err.println("sched_setaffinity(" + cpu + ") failed, continuing without pinning");
+            }
+        }
+    }
+
+    private static long lastLineEnd(MemorySegment segment) {
+        for (long i = segment.byteSize() - 1; i >= 0; i--) {
+            if (segment.get(JAVA_BYTE, i) == '\n') {
+                return i + 1;
+            }
+        }
+        throw new IllegalStateException("Line longer than " + segment.byteSize() + " bytes, increase the window or buffer size");
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Like {@link CalculateAverage_1}, but streams over the mapped file with {@link MeasurementSpliterator} instead of
+ * {@code BufferedReader.lines()}, so the parallel stream splits evenly and parsing doesn't allocate a string per line.
+ * Aggregation uses {@link StationCollector} rather than {@code groupingBy()}, which would need a string key per line.
+ */
+public class CalculateAverage_6 {
+
+    private static final String FILE = "./measurements.txt";
+
+    public static void main(String[] args) throws IOException {
+        long start = System.currentTimeMillis();
+
+        TreeMap<String, StationTable.Stats> result;
+        try (FileChannel channel = FileChannel.open(Path.of(args.length > 0 ? args[0] : FILE), StandardOpenOption.READ);
+                Arena arena = Arena.ofShared()) {
+            var mappedFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            result = MeasurementSpliterator.stream(mappedFile, true).collect(StationCollector.lines());
+        }
+
+        System.out.println(result);
+
+        long end = System.currentTimeMillis();
+
+        String time = String.format("%d min, %d sec",
+                TimeUnit.MILLISECONDS.toMinutes(end - start),
+                TimeUnit.MILLISECONDS.toSeconds(end - start) -
+                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(end - start)));
+        System.out.println("Solution completed in " + time);
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Aggregates measurements received over TCP instead of reading them from a file.
+ * <p>
+ * A single selector thread reads all connections into pooled direct buffers. Once a buffer is at least half full, its
+ * complete lines are handed to one of the workers through that worker's single-producer/single-consumer ring, and the
+ * trailing partial line is carried over into a fresh buffer. When no buffer is free or all rings are full, reading from
+ * that connection is paused until the workers catch up, so a slow consumer pushes back on the senders via TCP flow
+ * control rather than growing memory.
+ * <p>
+ * Usage:
+ * <ul>
+ * <li>{@code server [port]}: accepts {@code -Dconnections} (default 1) connections on the given port (default 9999),
+ * prints the result once all of them have been closed</li>
+ * <li>{@code generate <host> <port> [file]}: sends the file (default {@code ./measurements.txt}) over
+ * {@code -Dconnections} connections</li>
+ * <li>{@code loopback [file]} (default): runs both of the above in one process over the loopback interface; if sending
+ * fails, the run fails rather than waiting for connections or printing a partial result</li>
+ * </ul>
+ * The ingest throughput is printed along with the result.
+ */
+public class CalculateAverage_7 {
+
+    private static final String FILE = "./measurements.txt";
+
+    private static final int BUFFER_SIZE = Integer.getInteger("buffer.size", 1 << 20);
+    private static final int CONNECTIONS = Integer.getInteger("connections", 1);
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "loopback";
+        switch (mode) {
+            case "server" -> {
+                try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                    server.bind(new InetSocketAddress(args.length > 1 ? Integer.parseInt(args[1]) : 9999));
+                    Server receiver = new Server(server, CONNECTIONS);
+                    receiver.run();
+                    receiver.printResult();
+                }
+            }
+            case "generate" -> generate(new InetSocketAddress(args[1], Integer.parseInt(args[2])), Path.of(args.length > 3 ? args[3] : FILE));
+            case "loopback" -> {
+                try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                    server.bind(new InetSocketAddress("127.0.0.1", 0));
+                    Server receiver = new Server(server, CONNECTIONS);
+                    AtomicReference<Throwable> failure = new AtomicReference<>();
+                    Thread generator = new Thread(() -> {
+                        try {
+                            generate((InetSocketAddress) server.getLocalAddress(), Path.of(args.length > 1 ? args[1] : FILE));
+                        }
+                        catch (Throwable e) {
+                            failure.set(e);
+                            receiver.abort(e);
+                        }
+                    });
+                    generator.start();
+                    receiver.run();
+                    generator.join();
+                    // a sender failing midway closes its connection like a complete one, so check before printing
+                    if (failure.get() != null) {
+                        throw new IllegalStateException("Sending the input failed", failure.get());
+                    }
+                    receiver.printResult();
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
+
+    private static void generate(InetSocketAddress address, Path file) throws Exception {
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            Thread sender = new Thread(() -> {
+                try (SocketChannel socket = SocketChannel.open(address);
+                        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    for (long pos = 0; pos < size;) {
+                        pos += channel.transferTo(pos, size - pos, socket);
+                    }
+                }
+                catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private static class Server {
+        private static final ByteBuffer END_OF_INPUT = ByteBuffer.allocate(0);
+
+        private final ServerSocketChannel serverChannel;
+        private final Selector selector;
+        private final int expectedConnections;
+        private final BlockingQueue<ByteBuffer> pool;
+        private final SpscRing[] rings;
+        private final Worker[] workers;
+        private int nextRing;
+        private volatile Throwable abort;
+
+        private StationTable result;
+        private long bytes;
+        private long elapsed;
+
+        Server(ServerSocketChannel serverChannel, int expectedConnections) throws IOException {
+            this.serverChannel = serverChannel;
+            this.selector = Selector.open();
+            this.expectedConnections = expectedConnections;
+
+            int workerCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            // one for a connection to read into, one to carry its partial line over when dispatching
+            int bufferCount = Math.max(2, Integer.getInteger("buffers", 4 * workerCount + 2 * expectedConnections));
+            pool = new ArrayBlockingQueue<>(bufferCount);
+            for (int i = 0; i < bufferCount; i++) {
+                pool.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+            }
+
+            rings = new SpscRing[workerCount];
+            workers = new Worker[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                rings[i] = new SpscRing(4);
+                workers[i] = new Worker(rings[i], pool);
+            }
+        }
+
+        /**
+         * Makes {@link #run()} fail instead of waiting for further connections or input, e.g. when the sender has failed.
+         */
+        void abort(Throwable cause) {
+            abort = cause;
+            selector.wakeup();
+        }
+
+        void run() throws Exception {
+            for (Worker worker : workers) {
+                worker.start();
+            }
+
+            long startTime = 0;
+            int completed = 0;
+            List<SelectionKey> paused = new ArrayList<>();
+            List<Connection> finishing = new ArrayList<>();
+
+            try {
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+                while (completed < expectedConnections) {
+                    checkFailures();
+                    // while reading is paused or input is left to flush, poll for buffers and ring slots having been released by the workers
+                    selector.select(paused.isEmpty() && finishing.isEmpty() ? 0 : 1);
+
+                    for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        if (key.isAcceptable()) {
+                            SocketChannel channel = serverChannel.accept();
+                            if (channel == null) {
+                                continue;
+                            }
+                            if (startTime == 0) {
+                                startTime = System.nanoTime();
+                            }
+                            channel.configureBlocking(false);
+                            // without a free buffer, the connection starts out paused until one is released
+                            Connection connection = new Connection(channel, spareBuffer());
+                            SelectionKey connectionKey = channel.register(selector, connection.buffer != null ? SelectionKey.OP_READ : 0, connection);
+                            if (connection.buffer == null) {
+                                paused.add(connectionKey);
+                            }
+                        }
+                        else if (key.isReadable()) {
+                            Connection connection = (Connection) key.attachment();
+                            int read = connection.channel.read(connection.buffer);
+                            if (read < 0) {
+                                key.cancel();
+                                connection.channel.close();
+                                terminate(connection);
+                                if (flush(connection)) {
+                                    completed++;
+                                }
+                                else {
+                                    finishing.add(connection);
+                                }
+                            }
+                            else {
+                                bytes += read;
+                                if (!dispatch(connection, false)) {
+                                    key.interestOps(0);
+                                    paused.add(key);
+                                }
+                            }
+                        }
+                    }
+
+                    for (Iterator<SelectionKey> it = paused.iterator(); it.hasNext();) {
+                        SelectionKey key = it.next();
+                        Connection connection = (Connection) key.attachment();
+                        if (connection.buffer == null) {
+                            connection.buffer = spareBuffer();
+                        }
+                        if (connection.buffer != null && dispatch(connection, false)) {
+                            key.interestOps(SelectionKey.OP_READ);
+                            it.remove();
+                        }
+                    }
+
+                    for (Iterator<Connection> it = finishing.iterator(); it.hasNext();) {
+                        if (flush(it.next())) {
+                            it.remove();
+                            completed++;
+                        }
+                    }
+                }
+            }
+            finally {
+                selector.close();
+                for (int i = 0; i < rings.length; i++) {
+                    while (!rings[i].offer(END_OF_INPUT) && workers[i].isAlive()) {
+                        Thread.onSpinWait();
+                    }
+                }
+            }
+
+            result = new StationTable();
+            for (Worker worker : workers) {
+                worker.join();
+                result.merge(worker.table);
+            }
+            checkFailures();
+            elapsed = Math.max(1, System.nanoTime() - startTime);
+        }
+
+        /**
+         * Returns a free buffer for a connection to start reading into, but only if another one stays free, which the
+         * connections reading already need to carry over their partial lines when dispatching; otherwise {@code null}.
+         */
+        private ByteBuffer spareBuffer() {
+            ByteBuffer buffer = pool.poll();
+            if (buffer != null && pool.isEmpty()) {
+                pool.add(buffer);
+                return null;
+            }
+            return buffer;
+        }
+
+        private void checkFailures() throws IOException {
+            if (abort != null) {
+                throw new IOException("Aborted while receiving", abort);
+            }
+            for (Worker worker : workers) {
+                if (worker.failure != null) {
+                    throw new IllegalStateException("Worker failed", worker.failure);
+                }
+            }
+        }
+
+        void printResult() {
+            System.out.println(result.toMap());
+            System.out.printf("Ingested %,d MB over %d connection(s) in %d ms, %.1f MB/s%n",
+                    bytes >> 20, expectedConnections, TimeUnit.NANOSECONDS.toMillis(elapsed), (bytes / 1_048_576.0) / (elapsed / 1e9));
+        }
+
+        /**
+         * Hands the complete lines of the connection's buffer to a worker, if the buffer is full enough (or {@code force}
+         * is given at the end of input) and there's a worker with room in its ring plus a free buffer for the carry-over.
+         *
+         * @return {@code false} if the buffer is full but couldn't be dispatched, i.e. reading must pause
+         */
+        private boolean dispatch(Connection connection, boolean force) {
+            ByteBuffer buffer = connection.buffer;
+            if (!force && buffer.position() < buffer.capacity() / 2) {
+                return true;
+            }
+
+            int lineEnd = buffer.position();
+            while (lineEnd > 0 && buffer.get(lineEnd - 1) != '\n') {
+                lineEnd--;
+            }
+            if (lineEnd == 0) {
+                if (!buffer.hasRemaining()) {
+                    throw new IllegalStateException("Line longer than " + buffer.capacity() + " bytes, increase -Dbuffer.size");
+                }
+                return true;
+            }
+
+            SpscRing ring = null;
+            for (int i = 0; i < rings.length && ring == null; i++) {
+                nextRing = (nextRing + 1) % rings.length;
+                if (rings[nextRing].hasCapacity()) {
+                    ring = rings[nextRing];
+                }
+            }
+            ByteBuffer next = ring != null ? pool.poll() : null;
+            if (next == null) {
+                return buffer.hasRemaining();
+            }
+
+            next.clear().put(0, buffer, lineEnd, buffer.position() - lineEnd).position(buffer.position() - lineEnd);
+            buffer.limit(lineEnd).position(0);
+            ring.offer(buffer);
+            connection.buffer = next;
+            return true;
+        }
+
+        /**
+         * Appends the missing line break to the last line of a connection which reached the end of input.
+         */
+        private void terminate(Connection connection) {
+            ByteBuffer buffer = connection.buffer;
+            if (buffer.position() > 0 && buffer.get(buffer.position() - 1) != '\n') {
+                if (!buffer.hasRemaining()) {
+                    throw new IllegalStateException("Line longer than " + buffer.capacity() + " bytes, increase -Dbuffer.size");
+                }
+                buffer.put((byte) '\n');
+            }
+        }
+
+        /**
+         * Dispatches the remaining lines of a connection which reached the end of input and releases its buffer.
+         *
+         * @return {@code false} if there was no worker with room or no free buffer, i.e. it must be retried later
+         */
+        private boolean flush(Connection connection) {
+            ByteBuffer buffer = connection.buffer;
+            if (buffer.position() > 0) {
+                dispatch(connection, true);
+                if (connection.buffer == buffer) {
+                    return false;
+                }
+            }
+            pool.add(connection.buffer.clear());
+            return true;
+        }
+    }
+
+    private static class Connection {
+        final SocketChannel channel;
+        ByteBuffer buffer;
+
+        Connection(SocketChannel channel, ByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Worker extends Thread {
+        private final SpscRing ring;
+        private final BlockingQueue<ByteBuffer> pool;
+        final StationTable table = new StationTable();
+        volatile Throwable failure;
+
+        Worker(SpscRing ring, BlockingQueue<ByteBuffer> pool) {
+            this.ring = ring;
+            this.pool = pool;
+        }
+
+        @Override
+        public void run() {
+            try {
+                consume();
+            }
+            catch (Throwable e) {
+                failure = e;
+            }
+        }
+
+        private void consume() {
+            int idle = 0;
+            while (true) {
+                ByteBuffer buffer = ring.poll();
+                if (buffer == null) {
+                    if (++idle < 100) {
+                        Thread.onSpinWait();
+                    }
+                    else {
+                        LockSupport.parkNanos(50_000);
+                    }
+                    continue;
+                }
+                if (buffer == Server.END_OF_INPUT) {
+                    return;
+                }
+
+                idle = 0;
+                table.addLines(MemorySegment.ofBuffer(buffer), 0, buffer.remaining());
+                pool.add(buffer.clear());
+            }
+        }
+    }
+
+    /**
+     * A bounded single-producer/single-consumer queue; the producer publishes with a release store of the tail, the
+     * consumer frees slots with a release store of the head.
+     */
+    private static class SpscRing {
+        private final ByteBuffer[] slots;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        SpscRing(int capacity) {
+            slots = new ByteBuffer[capacity];
+            mask = capacity - 1;
+        }
+
+        boolean hasCapacity() {
+            return tail.get() - head.get() < slots.length;
+        }
+
+        boolean offer(ByteBuffer buffer) {
+            long t = tail.get();
+            if (t - head.get() == slots.length) {
+                return false;
+            }
+            slots[(int) t & mask] = buffer;
+            tail.lazySet(t + 1);
+            return true;
+        }
+
+        ByteBuffer poll() {
+            long h = head.get();
+            if (h == tail.get()) {
+                return null;
+            }
+            ByteBuffer buffer = slots[(int) h & mask];
+            slots[(int) h & mask] = null;
+            head.lazySet(h + 1);
+            return buffer;
+        }
+    }
+}
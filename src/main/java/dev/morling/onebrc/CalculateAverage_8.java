@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads non-seekable input, e.g. {@code zcat measurements.txt.gz | java ... CalculateAverage_8}, for which
+ * the chunk offsets of the mmap based engines can't be computed.
+ * <p>
+ * The main thread only reads: it fills large recycled buffers ({@code -Dbuffer.size}, default 4 MB) from stdin, or
+ * from the file given as first argument, and queues each buffer's complete lines for the parse workers, carrying the
+ * trailing partial line over into the next buffer. Workers aggregate into their own {@link StationTable} and return
+ * the buffers, so reading the next buffers overlaps with parsing the previous ones. A worker which fails returns
+ * {@code WORKER_FAILED} instead of its buffer, so the reader stops rather than waiting for that buffer, and the
+ * failure is rethrown.
+ */
+public class CalculateAverage_8 {
+
+    private static final int BUFFER_SIZE = Integer.getInteger("buffer.size", 4 << 20);
+    private static final ByteBuffer END_OF_INPUT = ByteBuffer.allocate(0);
+    private static final ByteBuffer WORKER_FAILED = ByteBuffer.allocate(0);
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        int workerCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(2 * workerCount + 2);
+        BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(2 * workerCount + 2 + workerCount);
+        for (int i = 0; i < 2 * workerCount + 2; i++) {
+            free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        StationTable[] tables = new StationTable[workerCount];
+        Thread[] workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            StationTable table = tables[i] = new StationTable();
+            workers[i] = new Thread(() -> {
+                try {
+                    for (ByteBuffer buffer = filled.take(); buffer != END_OF_INPUT; buffer = filled.take()) {
+                        table.addLines(MemorySegment.ofBuffer(buffer), 0, buffer.remaining());
+                        free.put(buffer.clear());
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                    // there's room, as this worker still holds one of the buffers
+                    free.add(WORKER_FAILED);
+                }
+            });
+            workers[i].start();
+        }
+
+        try (ReadableByteChannel in = args.length > 0
+                ? FileChannel.open(Path.of(args[0]), StandardOpenOption.READ)
+                : new FileInputStream(FileDescriptor.in).getChannel()) {
+            ByteBuffer buffer = take(free, failure);
+            while (in.read(buffer) >= 0) {
+                if (buffer.hasRemaining()) {
+                    continue;
+                }
+
+                int lineEnd = lastLineEnd(buffer);
+                ByteBuffer next = take(free, failure);
+                next.put(0, buffer, lineEnd, buffer.position() - lineEnd).position(buffer.position() - lineEnd);
+                filled.put(buffer.limit(lineEnd).position(0));
+                buffer = next;
+            }
+
+            if (buffer.position() > 0 && buffer.get(buffer.position() - 1) != '\n') {
+                if (!buffer.hasRemaining()) {
+                    throw new IllegalStateException("Line longer than " + BUFFER_SIZE + " bytes, increase -Dbuffer.size");
+                }
+                buffer.put((byte) '\n');
+            }
+            filled.put(buffer.flip());
+        }
+        finally {
+            // the queue has room for all buffers plus the end markers, so this doesn't block even if workers failed
+            for (int i = 0; i < workerCount; i++) {
+                filled.put(END_OF_INPUT);
+            }
+        }
+
+        StationTable result = new StationTable();
+        for (int i = 0; i < workerCount; i++) {
+            workers[i].join();
+            result.merge(tables[i]);
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Worker failed", failure.get());
+        }
+
+        System.out.println(result.toMap());
+
+        long endTime = System.currentTimeMillis();
+
+        String time = String.format("%d min, %d sec",
+                TimeUnit.MILLISECONDS.toMinutes(endTime - startTime),
+                TimeUnit.MILLISECONDS.toSeconds(endTime - startTime) -
+                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(endTime - startTime)));
+        System.out.println("Solution completed in " + time);
+    }
+
+    /**
+     * Takes a free buffer, failing if a worker has failed instead of returning one.
+     */
+    private static ByteBuffer take(BlockingQueue<ByteBuffer> free, AtomicReference<Throwable> failure) throws InterruptedException {
+        ByteBuffer buffer = free.take();
+        if (buffer == WORKER_FAILED) {
+            throw new IllegalStateException("Worker failed", failure.get());
+        }
+        return buffer;
+    }
+
+    private static int lastLineEnd(ByteBuffer buffer) {
+        for (int i = buffer.position() - 1; i >= 0; i--) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        throw new IllegalStateException("Line longer than " + BUFFER_SIZE + " bytes, increase -Dbuffer.size");
+    }
+}
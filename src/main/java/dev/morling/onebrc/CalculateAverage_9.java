@@ -0,0 +1,416 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Aggregates files with several value columns, e.g. {@code station;temp;humidity;pressure}, in a single scan. The
+ * columns are declared with {@code -Dschema}, as comma-separated {@code <name>:<type>} pairs where the type is
+ * {@code key} for the (single) grouping column, {@code skip} for an ignored column, or the number of fractional digits
+ * of a fixed-point value column; e.g. {@code -Dschema=station:key,temp:1,humidity:0,pressure:2}. The column delimiter
+ * is set with {@code -Ddelimiter} (default {@code ;}). The default schema is {@code station:key,temperature:1}, i.e.
+ * the regular measurements format. Any column may be the key column, also the last one; columns beyond the declared
+ * ones are ignored.
+ * <p>
+ * At startup, per-column parse and accumulate handles are bound to their column's constants (index, scale, delimiter)
+ * and composed into one row parser and one row accumulator. Both are held in static finals, so the JIT treats them as
+ * constants and inlines the whole chain into straight-line code for the given schema.
+ * <p>
+ * Values with more fractional digits than declared are truncated to the declared scale. With one value column, the
+ * output has the same format as the other engines; with several, each station lists {@code <column>:min/mean/max}
+ * for every value column.
+ */
+public class CalculateAverage_9 {
+
+    private static final String FILE = "./measurements.txt";
+
+    private static final Schema SCHEMA = Schema.parse(System.getProperty("schema", "station:key,temperature:1"), System.getProperty("delimiter", ";"));
+    private static final MethodHandle ROW_PARSER = SCHEMA.rowParser();
+    private static final MethodHandle ROW_ACCUMULATOR = SCHEMA.rowAccumulator();
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        final File file = new File(args.length > 0 ? args[0] : FILE);
+        final long length = file.length();
+        final int chunkCount = Runtime.getRuntime().availableProcessors();
+        final Table[] results = new Table[chunkCount];
+        final long[] chunkStartOffsets = new long[chunkCount];
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); Arena arena = Arena.ofShared()) {
+            for (int i = 1; i < chunkStartOffsets.length; i++) {
+                var start = length * i / chunkStartOffsets.length;
+                raf.seek(start);
+                int b;
+                do {
+                    b = raf.read();
+                } while (b != '\n' && b != -1);
+                chunkStartOffsets[i] = raf.getFilePointer();
+            }
+
+            final var mappedFile = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length, arena);
+            Thread[] threads = new Thread[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                final int index = i;
+                final long chunkStart = chunkStartOffsets[i];
+                final long chunkEnd = (i + 1 < chunkCount) ? chunkStartOffsets[i + 1] : length;
+                threads[i] = new Thread(() -> {
+                    try {
+                        results[index] = process(mappedFile.asSlice(chunkStart, chunkEnd - chunkStart));
+                    }
+                    catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+            }
+
+            for (Thread thread : threads) {
+                thread.start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Processing " + file + " failed", failure.get());
+        }
+
+        Table totals = new Table(SCHEMA.valueColumns());
+        for (Table table : results) {
+            totals.merge(table);
+        }
+
+        System.out.println(totals.format(SCHEMA));
+
+        long endTime = System.currentTimeMillis();
+
+        String time = String.format("%d min, %d sec",
+                TimeUnit.MILLISECONDS.toMinutes(endTime - startTime),
+                TimeUnit.MILLISECONDS.toSeconds(endTime - startTime) -
+                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(endTime - startTime)));
+        System.out.println("Solution completed in " + time);
+    }
+
+    /**
+     * Aggregates the rows of the chunk; the end of the chunk also ends a last row without line break.
+     */
+    private static Table process(MemorySegment chunk) throws Throwable {
+        Table table = new Table(SCHEMA.valueColumns());
+        // [0]: key offset, [1]: key length, [2...]: parsed values
+        long[] scratch = new long[2 + SCHEMA.valueColumns()];
+        long end = chunk.byteSize();
+        while (end > 0 && chunk.get(JAVA_BYTE, end - 1) != '\n') {
+            end--;
+        }
+        process(chunk, end, table, scratch);
+        if (end < chunk.byteSize()) {
+            MemorySegment lastRow = StationTable.terminated(chunk, end, chunk.byteSize());
+            process(lastRow, lastRow.byteSize(), table, scratch);
+        }
+        return table;
+    }
+
+    private static void process(MemorySegment chunk, long end, Table table, long[] scratch) throws Throwable {
+        for (long cursor = 0; cursor < end;) {
+            cursor = (long) ROW_PARSER.invokeExact(chunk, cursor, scratch);
+            int base = table.rowBase(chunk, scratch[0], (int) scratch[1]);
+            ROW_ACCUMULATOR.invokeExact(table.values, base, scratch);
+        }
+    }
+
+    private record Column(String name, boolean key, boolean skip, int scale) {
+    }
+
+    private record Schema(List<Column> columns, byte delimiter) {
+
+        private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+        private static final MethodType PARSER_TYPE = MethodType.methodType(long.class, MemorySegment.class, long.class, long[].class);
+        private static final MethodType ACCUMULATOR_TYPE = MethodType.methodType(void.class, long[].class, int.class, long[].class);
+
+        static Schema parse(String spec, String delimiter) {
+            List<Column> columns = new ArrayList<>();
+            for (String column : spec.split(",")) {
+                String[] nameType = column.trim().split(":");
+                String type = nameType.length > 1 ? nameType[1].trim() : "skip";
+                columns.add(switch (type) {
+                    case "key" -> new Column(nameType[0], true, false, 0);
+                    case "skip" -> new Column(nameType[0], false, true, 0);
+                    default -> new Column(nameType[0], false, false, Integer.parseInt(type));
+                });
+            }
+            if (columns.stream().filter(Column::key).count() != 1) {
+                throw new IllegalArgumentException("Schema must have exactly one key column: " + spec);
+            }
+            if (delimiter.length() != 1) {
+                throw new IllegalArgumentException("Delimiter must be a single byte: " + delimiter);
+            }
+            return new Schema(columns, (byte) delimiter.charAt(0));
+        }
+
+        List<Column> values() {
+            return columns.stream().filter(c -> !c.key() && !c.skip()).toList();
+        }
+
+        int valueColumns() {
+            return values().size();
+        }
+
+        /**
+         * Composes {@code (MemorySegment chunk, long cursor, long[] scratch) -> long nextLine}, parsing one row into the scratch array.
+         */
+        MethodHandle rowParser() {
+            try {
+                MethodHandle parser = null;
+                int valueIndex = 0;
+                for (Column column : columns) {
+                    MethodHandle columnParser;
+                    if (column.key()) {
+                        columnParser = MethodHandles.insertArguments(
+                                LOOKUP.findStatic(CalculateAverage_9.class, "parseKey", PARSER_TYPE.appendParameterTypes(byte.class)), 3, delimiter);
+                    }
+                    else if (column.skip()) {
+                        columnParser = MethodHandles.insertArguments(
+                                LOOKUP.findStatic(CalculateAverage_9.class, "skip", PARSER_TYPE.appendParameterTypes(byte.class)), 3, delimiter);
+                    }
+                    else {
+                        columnParser = MethodHandles.insertArguments(
+                                LOOKUP.findStatic(CalculateAverage_9.class, "parseValue", PARSER_TYPE.appendParameterTypes(int.class, byte.class, int.class)),
+                                3, 2 + valueIndex++, delimiter, column.scale());
+                    }
+                    parser = parser == null ? columnParser : andThen(parser, columnParser);
+                }
+                return andThen(parser, LOOKUP.findStatic(CalculateAverage_9.class, "skipToNextLine", PARSER_TYPE));
+            }
+            catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Composes {@code (long[] values, int base, long[] scratch) -> void}, adding one parsed row to a table row.
+         */
+        MethodHandle rowAccumulator() {
+            try {
+                MethodHandle accumulator = LOOKUP.findStatic(CalculateAverage_9.class, "count", ACCUMULATOR_TYPE);
+                MethodHandle accumulate = LOOKUP.findStatic(CalculateAverage_9.class, "accumulate", ACCUMULATOR_TYPE.appendParameterTypes(int.class));
+                for (int i = 0; i < valueColumns(); i++) {
+                    accumulator = MethodHandles.foldArguments(MethodHandles.insertArguments(accumulate, 3, i), accumulator);
+                }
+                return accumulator;
+            }
+            catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Returns {@code (chunk, cursor, scratch) -> second(chunk, first(chunk, cursor, scratch), scratch)}.
+         */
+        private static MethodHandle andThen(MethodHandle first, MethodHandle second) {
+            MethodHandle combined = MethodHandles.collectArguments(second, 1, first);
+            return MethodHandles.permuteArguments(combined, PARSER_TYPE, 0, 0, 1, 2, 2);
+        }
+    }
+
+    private static long parseKey(MemorySegment chunk, long cursor, long[] scratch, byte delimiter) {
+        long end = cursor;
+        byte b = chunk.get(JAVA_BYTE, end);
+        while (b != delimiter && b != '\n') {
+            b = chunk.get(JAVA_BYTE, ++end);
+        }
+        scratch[0] = cursor;
+        scratch[1] = end - cursor;
+        return end + 1;
+    }
+
+    private static long skip(MemorySegment chunk, long cursor, long[] scratch, byte delimiter) {
+        byte b;
+        do {
+            b = chunk.get(JAVA_BYTE, cursor++);
+        } while (b != delimiter && b != '\n');
+        return cursor;
+    }
+
+    private static long parseValue(MemorySegment chunk, long cursor, long[] scratch, int index, byte delimiter, int scale) {
+        long end = cursor;
+        byte b = chunk.get(JAVA_BYTE, end);
+        while (b != delimiter && b != '\n') {
+            b = chunk.get(JAVA_BYTE, ++end);
+        }
+        scratch[index] = FixedPoint.parse(chunk, cursor, end, scale);
+        return end + 1;
+    }
+
+    /**
+     * Skips the columns after the declared ones, if any; the cursor is just past the last declared column's delimiter or
+     * line break.
+     */
+    private static long skipToNextLine(MemorySegment chunk, long cursor, long[] scratch) {
+        if (chunk.get(JAVA_BYTE, cursor - 1) == '\n') {
+            return cursor;
+        }
+        while (chunk.get(JAVA_BYTE, cursor) != '\n') {
+            cursor++;
+        }
+        return cursor + 1;
+    }
+
+    private static void count(long[] values, int base, long[] scratch) {
+        values[base]++;
+    }
+
+    private static void accumulate(long[] values, int base, long[] scratch, int column) {
+        long value = scratch[2 + column];
+        int offset = base + 1 + 3 * column;
+        values[offset] += value;
+        values[offset + 1] = Math.min(values[offset + 1], value);
+        values[offset + 2] = Math.max(values[offset + 2], value);
+    }
+
+    /**
+     * Open-addressing table like {@link StationTable}, holding per key a row of {@code count} followed by
+     * {@code sum, min, max} for each value column.
+     */
+    private static class Table {
+        private final int valueColumns;
+        private final int stride;
+        private int mask;
+        private int size;
+        private MemorySegment[] names;
+        private int[] hashes;
+        long[] values;
+
+        Table(int valueColumns) {
+            this.valueColumns = valueColumns;
+            this.stride = 1 + 3 * valueColumns;
+            allocate(1024);
+        }
+
+        private void allocate(int capacity) {
+            mask = capacity - 1;
+            size = 0;
+            names = new MemorySegment[capacity];
+            hashes = new int[capacity];
+            values = new long[capacity * stride];
+        }
+
+        int rowBase(MemorySegment segment, long nameOffset, int nameLength) {
+            return slot(segment, nameOffset, nameLength, StationTable.hash(segment, nameOffset, nameLength)) * stride;
+        }
+
+        private int slot(MemorySegment segment, long nameOffset, int nameLength, int hash) {
+            int slot = hash & mask;
+            while (true) {
+                MemorySegment name = names[slot];
+                if (name == null) {
+                    if (size + 1 > (mask + 1) / 2) {
+                        grow();
+                        return slot(segment, nameOffset, nameLength, hash);
+                    }
+                    names[slot] = MemorySegment.ofArray(segment.asSlice(nameOffset, nameLength).toArray(JAVA_BYTE));
+                    hashes[slot] = hash;
+                    for (int column = 0; column < valueColumns; column++) {
+                        values[slot * stride + 2 + 3 * column] = Long.MAX_VALUE;
+                        values[slot * stride + 3 + 3 * column] = Long.MIN_VALUE;
+                    }
+                    size++;
+                    return slot;
+                }
+                if (hashes[slot] == hash && name.byteSize() == nameLength
+                        && MemorySegment.mismatch(name, 0, nameLength, segment, nameOffset, nameOffset + nameLength) == -1) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void grow() {
+            MemorySegment[] oldNames = names;
+            int[] oldHashes = hashes;
+            long[] oldValues = values;
+
+            allocate(names.length * 2);
+            for (int i = 0; i < oldNames.length; i++) {
+                if (oldNames[i] != null) {
+                    int slot = oldHashes[i] & mask;
+                    while (names[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    names[slot] = oldNames[i];
+                    hashes[slot] = oldHashes[i];
+                    System.arraycopy(oldValues, i * stride, values, slot * stride, stride);
+                    size++;
+                }
+            }
+        }
+
+        void merge(Table other) {
+            for (int i = 0; i < other.names.length; i++) {
+                MemorySegment name = other.names[i];
+                if (name != null) {
+                    int base = slot(name, 0, (int) name.byteSize(), other.hashes[i]) * stride;
+                    int otherBase = i * stride;
+                    values[base] += other.values[otherBase];
+                    for (int offset = 1; offset < stride; offset += 3) {
+                        values[base + offset] += other.values[otherBase + offset];
+                        values[base + offset + 1] = Math.min(values[base + offset + 1], other.values[otherBase + offset + 1]);
+                        values[base + offset + 2] = Math.max(values[base + offset + 2], other.values[otherBase + offset + 2]);
+                    }
+                }
+            }
+        }
+
+        String format(Schema schema) {
+            List<Column> columns = schema.values();
+            TreeMap<String, String> result = new TreeMap<>();
+            for (int i = 0; i < names.length; i++) {
+                if (names[i] != null) {
+                    int base = i * stride;
+                    StringJoiner stats = new StringJoiner(" ");
+                    for (int column = 0; column < columns.size(); column++) {
+                        int offset = base + 1 + 3 * column;
+                        int scale = columns.get(column).scale();
+                        String minMeanMax = FixedPoint.format(values[offset + 1], scale) + "/"
+                                + FixedPoint.format(Math.round((double) values[offset] / values[base]), scale) + "/"
+                                + FixedPoint.format(values[offset + 2], scale);
+                        stats.add(columns.size() == 1 ? minMeanMax : columns.get(column).name() + ":" + minMeanMax);
+                    }
+                    result.put(new String(names[i].toArray(JAVA_BYTE), StandardCharsets.UTF_8), stats.toString());
+                }
+            }
+            return result.toString();
+        }
+    }
+}
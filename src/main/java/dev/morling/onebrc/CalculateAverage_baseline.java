@@ -84,10 +84,12 @@ public class CalculateAverage_baseline {
                     return res;
                 },
                 agg -> {
-                    return new ResultRow(agg.min, (Math.round(agg.sum * 10.0) / 10.0) / agg.count, agg.max);
+                    // rounded in tenths, as rounding the quotient of the doubles gets some means ending in 5 wrong
+                    long sumInTenths = Math.round(agg.sum * 10.0);
+                    return new ResultRow(agg.min, Math.round((double) sumInTenths / agg.count) / 10.0, agg.max);
                 });
 
-        Map<String, ResultRow> measurements = new TreeMap<>(Files.lines(Paths.get(FILE))
+        Map<String, ResultRow> measurements = new TreeMap<>(Files.lines(Paths.get(args.length > 0 ? args[0] : FILE))
                 .map(l -> new Measurement(l.split(";")))
                 .collect(groupingBy(m -> m.station(), collector)));
 
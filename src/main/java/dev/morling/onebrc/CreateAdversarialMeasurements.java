@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Creates measurements for station name sets which are hard on hash tables, to check that throughput doesn't depend on
+ * the names:
+ * <ul>
+ * <li>{@code polynomial}: names made of {@code "Aa"} and {@code "BB"} blocks, which all have the same {@code 31 * h + b}
+ * polynomial hash, whatever its initial value</li>
+ * <li>{@code prefix}: device IDs sharing a long prefix and differing only in a counter at the end</li>
+ * <li>{@code random}: random names of the same length as the {@code prefix} ones, as the baseline</li>
+ * </ul>
+ * Writes {@code ./measurements.txt}; {@code -Dseed} (default 42) makes the output reproducible.
+ */
+public class CreateAdversarialMeasurements {
+
+    private static final Path MEASUREMENT_FILE = Path.of("./measurements.txt");
+
+    public static void main(String[] args) throws Exception {
+        long start = System.currentTimeMillis();
+
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: CreateAdversarialMeasurements <number of records to create> polynomial|prefix|random [number of stations]");
+            System.exit(1);
+        }
+
+        int size = Integer.parseInt(args[0]);
+        int stationCount = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        Random random = new Random(Long.getLong("seed", 42));
+        List<String> stations = switch (args[1]) {
+            case "polynomial" -> polynomialCollisions(stationCount);
+            case "prefix" -> sharedPrefix(stationCount);
+            case "random" -> randomNames(stationCount, sharedPrefix(1).get(0).length(), random);
+            default -> throw new IllegalArgumentException("Unknown key set: " + args[1]);
+        };
+
+        try (BufferedWriter bw = Files.newBufferedWriter(MEASUREMENT_FILE)) {
+            for (int i = 0; i < size; i++) {
+                bw.write(stations.get(random.nextInt(stations.size())));
+                bw.write(";" + (random.nextInt(1999) - 999) / 10.0);
+                bw.write('\n');
+            }
+        }
+        System.out.printf("Created file with %,d measurements for %,d %s stations in %s ms%n", size, stations.size(), args[1],
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Returns the given number of distinct names of equal length and equal {@code 31 * h + b} hash, as
+     * {@code "Aa"} and {@code "BB"} hash the same and so do all concatenations of the same number of them.
+     */
+    static List<String> polynomialCollisions(int count) {
+        int blocks = Math.max(1, 32 - Integer.numberOfLeadingZeros(count - 1));
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder name = new StringBuilder(blocks * 2);
+            for (int block = 0; block < blocks; block++) {
+                name.append((i >>> block & 1) == 0 ? "Aa" : "BB");
+            }
+            names.add(name.toString());
+        }
+        return names;
+    }
+
+    static List<String> sharedPrefix(int count) {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(String.format("sensor-eu-central-1-rack-0042-device-%08d", i));
+        }
+        return names;
+    }
+
+    static List<String> randomNames(int count, int length, Random random) {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder name = new StringBuilder(length);
+            for (int c = 0; c < length; c++) {
+                name.append((char) ('a' + random.nextInt(26)));
+            }
+            names.add(name.toString());
+        }
+        return names;
+    }
+}
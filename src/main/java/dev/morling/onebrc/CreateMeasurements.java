@@ -19,15 +19,20 @@ import java.io.BufferedWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 
+/**
+ * Creates {@code ./measurements.txt}; with {@code -Dseed}, the same seed and size always give the same file.
+ */
 public class CreateMeasurements {
 
     private static final Path MEASUREMENT_FILE = Path.of("./measurements.txt");
 
     private record WeatherStation(String id, double meanTemperature) {
-        double measurement() {
-            double m = ThreadLocalRandom.current().nextGaussian(meanTemperature, 10);
+        double measurement(RandomGenerator random) {
+            double m = random.nextGaussian(meanTemperature, 10);
             return Math.round(m * 10.0) / 10.0;
         }
     }
@@ -489,14 +494,16 @@ public class CreateMeasurements {
                 new WeatherStation("Zanzibar City", 26.0),
                 new WeatherStation("Zürich", 9.3));
 
+        Long seed = Long.getLong("seed");
+        RandomGenerator random = seed != null ? new Random(seed) : ThreadLocalRandom.current();
         try (BufferedWriter bw = Files.newBufferedWriter(MEASUREMENT_FILE)) {
             for (int i = 0; i < size; i++) {
                 if (i > 0 && i % 50_000_000 == 0) {
                     System.out.printf("Wrote %,d measurements in %s ms%n", i, System.currentTimeMillis() - start);
                 }
-                WeatherStation station = stations.get(ThreadLocalRandom.current().nextInt(stations.size()));
+                WeatherStation station = stations.get(random.nextInt(stations.size()));
                 bw.write(station.id());
-                bw.write(";" + station.measurement());
+                bw.write(";" + station.measurement(random));
                 bw.write('\n');
             }
         }
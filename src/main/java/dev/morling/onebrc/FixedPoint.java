@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+import java.math.BigDecimal;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Parses decimal values like {@code -123.45} into {@code long} fixed-point values with a given number of fractional
+ * digits (the scale), e.g. {@code -12345} for scale 2, without going through {@code Double.parseDouble}.
+ * <p>
+ * {@link #parseShort(MemorySegment, long)} is the fast path for the common {@code d.d} and {@code dd.d} shapes at the
+ * end of a line; anything else is handled by {@link #parse(MemorySegment, long, long, int)}.
+ * The scale used by the {@link StationTable} based engines is set with {@code -Dscale} (default 1, i.e. tenths).
+ */
+public final class FixedPoint {
+
+    public static final int DEFAULT_SCALE = Integer.getInteger("scale", 1);
+
+    /**
+     * Returned by {@link #parseShort(MemorySegment, long)} if the value doesn't have one of the short shapes.
+     */
+    public static final long NO_SHORT_FORM = Long.MIN_VALUE;
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = 10 * POWERS_OF_TEN[i - 1];
+        }
+    }
+
+    private FixedPoint() {
+    }
+
+    /**
+     * Parses a value of the shape {@code [-]d.d} or {@code [-]dd.d} which is directly followed by a line break
+     * ({@code \n} or {@code \r\n}). Never reads beyond the line break, so it's safe on any line which has one.
+     *
+     * @return the value in tenths, shifted left by 8 bits, with the number of bytes up to the {@code \n} in the low 8
+     *         bits; or {@link #NO_SHORT_FORM}
+     */
+    public static long parseShort(MemorySegment segment, long offset) {
+        long off = offset;
+        boolean negative = segment.get(JAVA_BYTE, off) == '-';
+        if (negative) {
+            off++;
+        }
+
+        int value = segment.get(JAVA_BYTE, off) - '0';
+        if (value < 0 || value > 9) {
+            return NO_SHORT_FORM;
+        }
+        byte b = segment.get(JAVA_BYTE, off + 1);
+        if (b != '.') {
+            if (b < '0' || b > '9' || segment.get(JAVA_BYTE, off + 2) != '.') {
+                return NO_SHORT_FORM;
+            }
+            value = 10 * value + b - '0';
+            off++;
+        }
+        byte fraction = segment.get(JAVA_BYTE, off + 2);
+        if (fraction < '0' || fraction > '9') {
+            return NO_SHORT_FORM;
+        }
+        long lineBreak = off + 3;
+        if (segment.get(JAVA_BYTE, lineBreak) != '\n') {
+            if (segment.get(JAVA_BYTE, lineBreak) != '\r' || segment.get(JAVA_BYTE, lineBreak + 1) != '\n') {
+                return NO_SHORT_FORM;
+            }
+            lineBreak++;
+        }
+        value = 10 * value + fraction - '0';
+
+        return ((long) (negative ? -value : value) << 8) | (lineBreak - offset);
+    }
+
+    /**
+     * Parses the value between {@code from} (inclusive) and {@code to} (exclusive). Fractional digits beyond the scale
+     * are truncated, missing ones are taken as zeros.
+     *
+     * @throws NumberFormatException if the range isn't a decimal value, or it doesn't fit into a {@code long} at the
+     *             given scale
+     */
+    public static long parse(MemorySegment segment, long from, long to, int scale) {
+        long off = from;
+        boolean negative = off < to && segment.get(JAVA_BYTE, off) == '-';
+        if (negative) {
+            off++;
+        }
+
+        long value = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; off < to; off++) {
+            byte b = segment.get(JAVA_BYTE, off);
+            if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            }
+            else if (b < '0' || b > '9') {
+                throw invalid(segment, from, to);
+            }
+            else if (fractionDigits < 0 || fractionDigits < scale) {
+                value = 10 * value + b - '0';
+                digits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            }
+        }
+        if (digits == 0) {
+            throw invalid(segment, from, to);
+        }
+
+        int missing = scale - Math.max(fractionDigits, 0);
+        if (digits + missing > 18) {
+            throw new NumberFormatException("Value out of range at scale " + scale + ": " + text(segment, from, to));
+        }
+        value *= POWERS_OF_TEN[missing];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Multiplies a value in tenths up to the given scale.
+     */
+    public static long fromTenths(long tenths, int scale) {
+        return scale == 1 ? tenths : scale > 1 ? tenths * POWERS_OF_TEN[scale - 1] : tenths / 10;
+    }
+
+    public static double toDouble(long value, int scale) {
+        return (double) value / POWERS_OF_TEN[scale];
+    }
+
+    public static String format(long value, int scale) {
+        return BigDecimal.valueOf(value, scale).toPlainString();
+    }
+
+    private static NumberFormatException invalid(MemorySegment segment, long from, long to) {
+        return new NumberFormatException("Not a decimal value: " + text(segment, from, to));
+    }
+
+    private static String text(MemorySegment segment, long from, long to) {
+        return new String(segment.asSlice(from, to - from).toArray(JAVA_BYTE));
+    }
+}
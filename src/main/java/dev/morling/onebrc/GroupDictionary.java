@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Maps station names to groups, e.g. countries or regions, read from a file of {@code <station>;<group>} lines. Groups
+ * are numbered, so a {@link StationTable} can keep the group of each station as an int next to its slot, looking it
+ * up only when the station is first seen. Stations which aren't in the file belong to the group {@link #UNMAPPED}, which
+ * has id 0. Immutable, so one instance can be shared by all workers.
+ */
+public class GroupDictionary {
+
+    public static final String UNMAPPED = "(unmapped)";
+
+    private final Map<String, Integer> groupIds;
+    private final List<String> groupNames;
+
+    private GroupDictionary(Map<String, Integer> groupIds, List<String> groupNames) {
+        this.groupIds = groupIds;
+        this.groupNames = groupNames;
+    }
+
+    /**
+     * Reads the dictionary from the given file. Lines without a separator are ignored; if a station is listed more than
+     * once, the last group wins.
+     */
+    public static GroupDictionary load(Path file) throws IOException {
+        Map<String, Integer> groupIds = new HashMap<>();
+        List<String> groupNames = new ArrayList<>(List.of(UNMAPPED));
+        Map<String, Integer> ids = new HashMap<>(Map.of(UNMAPPED, 0));
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int separator = line.indexOf(';');
+            if (separator > 0) {
+                String group = line.substring(separator + 1).trim();
+                Integer id = ids.computeIfAbsent(group, g -> {
+                    groupNames.add(g);
+                    return groupNames.size() - 1;
+                });
+                groupIds.put(line.substring(0, separator), id);
+            }
+        }
+        return new GroupDictionary(groupIds, List.copyOf(groupNames));
+    }
+
+    /**
+     * Returns the id of the group of the station with the given UTF-8 name.
+     */
+    public int groupOf(MemorySegment name) {
+        return groupOf(new String(name.toArray(JAVA_BYTE), StandardCharsets.UTF_8));
+    }
+
+    public int groupOf(String name) {
+        return groupIds.getOrDefault(name, 0);
+    }
+
+    public String groupName(int id) {
+        return groupNames.get(id);
+    }
+
+    public int groupCount() {
+        return groupNames.size();
+    }
+}
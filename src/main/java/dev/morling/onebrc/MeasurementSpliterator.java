@@ -0,0 +1,209 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * A {@link Spliterator} over the {@code <station>;<temperature>} lines of a (typically mapped) memory segment, for
+ * using the Stream API on measurement files without {@code BufferedReader.lines()}.
+ * <p>
+ * Splitting halves the remaining range and moves the split point forward to the next line start, so it only looks at
+ * the bytes of one line. Lines aren't materialized as strings: each spliterator hands out one reusable {@link Line}
+ * view, which is only valid within the call to the consumer and must not be retained.
+ */
+public class MeasurementSpliterator implements Spliterator<MeasurementSpliterator.Line> {
+
+    private static final long MIN_SPLIT_SIZE = 64 * 1024;
+    private static final long ESTIMATE_SAMPLE_SIZE = 4096;
+
+    private final MemorySegment segment;
+    private final double averageLineLength;
+    private final Line line;
+    private long cursor;
+    private final long end;
+
+    private MeasurementSpliterator(MemorySegment segment, long cursor, long end, double averageLineLength) {
+        this.segment = segment;
+        this.cursor = cursor;
+        this.end = end;
+        this.averageLineLength = averageLineLength;
+        this.line = new Line(segment);
+    }
+
+    /**
+     * Returns a spliterator over all lines of the given segment; the last line may lack its line break.
+     */
+    public static MeasurementSpliterator of(MemorySegment segment) {
+        return new MeasurementSpliterator(segment, 0, segment.byteSize(), sampleAverageLineLength(segment));
+    }
+
+    public static Stream<Line> stream(MemorySegment segment, boolean parallel) {
+        return StreamSupport.stream(of(segment), parallel);
+    }
+
+    private static double sampleAverageLineLength(MemorySegment segment) {
+        long sampleSize = Math.min(segment.byteSize(), ESTIMATE_SAMPLE_SIZE);
+        int lines = 0;
+        long lastLineEnd = 0;
+        for (long i = 0; i < sampleSize; i++) {
+            if (segment.get(JAVA_BYTE, i) == '\n') {
+                lines++;
+                lastLineEnd = i + 1;
+            }
+        }
+        return lines == 0 ? Math.max(1, sampleSize) : (double) lastLineEnd / lines;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Line> action) {
+        if (cursor >= end) {
+            return false;
+        }
+        cursor = line.parse(cursor);
+        action.accept(line);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Line> action) {
+        long cursor = this.cursor;
+        while (cursor < end) {
+            cursor = line.parse(cursor);
+            action.accept(line);
+        }
+        this.cursor = cursor;
+    }
+
+    @Override
+    public Spliterator<Line> trySplit() {
+        long remaining = end - cursor;
+        if (remaining < MIN_SPLIT_SIZE) {
+            return null;
+        }
+
+        long splitPos = cursor + remaining / 2;
+        while (splitPos < end && segment.get(JAVA_BYTE, splitPos - 1) != '\n') {
+            splitPos++;
+        }
+        if (splitPos >= end) {
+            return null;
+        }
+
+        var prefix = new MeasurementSpliterator(segment, cursor, splitPos, averageLineLength);
+        cursor = splitPos;
+        return prefix;
+    }
+
+    /**
+     * Estimated from the remaining bytes and the average line length of the first few KB of the segment.
+     */
+    @Override
+    public long estimateSize() {
+        return (long) Math.ceil((end - cursor) / averageLineLength);
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+
+    /**
+     * A flyweight view of one measurement line: the station name bytes within the underlying segment and the
+     * value as fixed-point number with {@link FixedPoint#DEFAULT_SCALE} fractional digits.
+     */
+    public static final class Line {
+        private static final int SCALE = FixedPoint.DEFAULT_SCALE;
+        // the longest short form, "-99.9\r\n"
+        private static final int MAX_SHORT_FORM_LENGTH = 7;
+
+        private final MemorySegment segment;
+        private final long limit;
+        private long nameOffset;
+        private int nameLength;
+        private long value;
+
+        private Line(MemorySegment segment) {
+            this.segment = segment;
+            this.limit = segment.byteSize();
+        }
+
+        /**
+         * Parses the line at the given offset, returning the offset of the next line. Near the end of the segment, the
+         * value is scanned with bounds checks, as the last line may end without line break.
+         */
+        private long parse(long cursor) {
+            long semicolonPos = cursor;
+            while (segment.get(JAVA_BYTE, semicolonPos) != ';') {
+                semicolonPos++;
+            }
+
+            long valueStart = semicolonPos + 1;
+            long lineEnd;
+            long packed = SCALE > 0 && valueStart + MAX_SHORT_FORM_LENGTH <= limit ? FixedPoint.parseShort(segment, valueStart) : FixedPoint.NO_SHORT_FORM;
+            if (packed != FixedPoint.NO_SHORT_FORM) {
+                value = FixedPoint.fromTenths(packed >> 8, SCALE);
+                lineEnd = valueStart + (packed & 0xFF);
+            }
+            else {
+                lineEnd = valueStart;
+                while (lineEnd < limit && segment.get(JAVA_BYTE, lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                value = FixedPoint.parse(segment, valueStart, lineEnd, SCALE);
+            }
+
+            nameOffset = cursor;
+            nameLength = (int) (semicolonPos - cursor);
+            return lineEnd + 1;
+        }
+
+        public MemorySegment segment() {
+            return segment;
+        }
+
+        public long nameOffset() {
+            return nameOffset;
+        }
+
+        public int nameLength() {
+            return nameLength;
+        }
+
+        public long value() {
+            return value;
+        }
+
+        /**
+         * Decodes the station name; allocates, so only use it where a {@code String} is really needed.
+         */
+        public String station() {
+            return new String(segment.asSlice(nameOffset, nameLength).toArray(JAVA_BYTE), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return station() + ";" + FixedPoint.format(value, SCALE);
+        }
+    }
+}
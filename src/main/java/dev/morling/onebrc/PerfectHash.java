@@ -0,0 +1,238 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * A minimal perfect hash over a fixed set of station names, built with the CHD (compress, hash, displace) algorithm:
+ * the keys are hashed into buckets of about {@value #BUCKET_SIZE} keys, and starting with the largest bucket, each
+ * bucket gets the first seed which moves all of its keys to positions that are still free. Looking up a name then takes
+ * one hash of its bytes, one seed load and one compare against the name stored at the resulting position, without any
+ * probing. The positions are numbered 0 to {@code size() - 1}, so they can index dense arrays directly.
+ * <p>
+ * Names are hashed with 64-bit FNV-1a, which callers can compute byte by byte while scanning for the separator, see
+ * {@link #FNV_OFFSET} and {@link #FNV_PRIME}.
+ */
+public class PerfectHash {
+
+    public static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    public static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int BUCKET_SIZE = 4;
+    private static final int MAX_SEED = 1 << 24;
+
+    private final int[] seeds;
+    private final MemorySegment names;
+    private final int[] nameOffsets;
+    private final int[] nameLengths;
+    private final String[] decodedNames;
+    private final int[] sortedIds;
+
+    private PerfectHash(int[] seeds, byte[][] keys) {
+        this.seeds = seeds;
+        this.nameOffsets = new int[keys.length];
+        this.nameLengths = new int[keys.length];
+        this.decodedNames = new String[keys.length];
+        byte[] all = new byte[Arrays.stream(keys).mapToInt(k -> k.length).sum()];
+        int offset = 0;
+        for (int id = 0; id < keys.length; id++) {
+            System.arraycopy(keys[id], 0, all, offset, keys[id].length);
+            nameOffsets[id] = offset;
+            nameLengths[id] = keys[id].length;
+            decodedNames[id] = new String(keys[id], StandardCharsets.UTF_8);
+            offset += keys[id].length;
+        }
+        this.names = MemorySegment.ofArray(all);
+        this.sortedIds = IntStream.range(0, keys.length).boxed()
+                .sorted(Comparator.comparing(id -> decodedNames[id]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    /**
+     * Builds the hash from a file with one station name per line; anything after a {@code ;} is ignored, so a
+     * {@link GroupDictionary} file can be used as well. Empty lines and duplicates are skipped.
+     */
+    public static PerfectHash load(Path file) throws IOException {
+        Set<String> stations = new LinkedHashSet<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int separator = line.indexOf(';');
+            String station = separator >= 0 ? line.substring(0, separator) : line;
+            if (!station.isEmpty()) {
+                stations.add(station);
+            }
+        }
+        return build(stations.stream().map(s -> s.getBytes(StandardCharsets.UTF_8)).toList());
+    }
+
+    /**
+     * Builds the hash over the given distinct UTF-8 names.
+     *
+     * @throws IllegalArgumentException if two names have the same 64-bit hash, e.g. because they're equal
+     */
+    public static PerfectHash build(List<byte[]> keys) {
+        int n = keys.size();
+        int bucketCount = Math.max(1, (n + BUCKET_SIZE - 1) / BUCKET_SIZE);
+        long[] hashes = new long[n];
+        int[] bucketStarts = new int[bucketCount + 1];
+        for (int k = 0; k < n; k++) {
+            byte[] key = keys.get(k);
+            hashes[k] = mix(fnv(MemorySegment.ofArray(key), 0, key.length));
+            bucketStarts[bucket(hashes[k], bucketCount) + 1]++;
+        }
+        long[] sortedHashes = hashes.clone();
+        Arrays.sort(sortedHashes);
+        for (int k = 1; k < n; k++) {
+            if (sortedHashes[k] == sortedHashes[k - 1]) {
+                throw new IllegalArgumentException("Two names have the same hash; are there duplicates?");
+            }
+        }
+
+        // counting sort of the keys by bucket, and of the buckets by descending size
+        int maxBucketSize = 0;
+        for (int b = 0; b < bucketCount; b++) {
+            maxBucketSize = Math.max(maxBucketSize, bucketStarts[b + 1]);
+            bucketStarts[b + 1] += bucketStarts[b];
+        }
+        int[] bucketKeys = new int[n];
+        int[] fill = Arrays.copyOf(bucketStarts, bucketCount);
+        for (int k = 0; k < n; k++) {
+            bucketKeys[fill[bucket(hashes[k], bucketCount)]++] = k;
+        }
+        int[] sizeStarts = new int[maxBucketSize + 2];
+        for (int b = 0; b < bucketCount; b++) {
+            sizeStarts[maxBucketSize - (bucketStarts[b + 1] - bucketStarts[b]) + 1]++;
+        }
+        for (int i = 1; i < sizeStarts.length; i++) {
+            sizeStarts[i] += sizeStarts[i - 1];
+        }
+        int[] order = new int[bucketCount];
+        for (int b = 0; b < bucketCount; b++) {
+            order[sizeStarts[maxBucketSize - (bucketStarts[b + 1] - bucketStarts[b])]++] = b;
+        }
+
+        int[] seeds = new int[bucketCount];
+        long[] taken = new long[(n + 63) >>> 6];
+        byte[][] slots = new byte[n][];
+        int[] positions = new int[maxBucketSize];
+        for (int b : order) {
+            int from = bucketStarts[b];
+            int size = bucketStarts[b + 1] - from;
+            if (size == 0) {
+                break;
+            }
+            int seed = 0;
+            search: for (;; seed++) {
+                if (seed == MAX_SEED) {
+                    throw new IllegalStateException("No seed found for a bucket of " + size + " names");
+                }
+                for (int i = 0; i < size; i++) {
+                    int position = position(hashes[bucketKeys[from + i]], seed, n);
+                    if ((taken[position >>> 6] & (1L << position)) != 0) {
+                        continue search;
+                    }
+                    for (int j = 0; j < i; j++) {
+                        if (positions[j] == position) {
+                            continue search;
+                        }
+                    }
+                    positions[i] = position;
+                }
+                break;
+            }
+            seeds[b] = seed;
+            for (int i = 0; i < size; i++) {
+                taken[positions[i] >>> 6] |= 1L << positions[i];
+                slots[positions[i]] = keys.get(bucketKeys[from + i]);
+            }
+        }
+        return new PerfectHash(seeds, slots);
+    }
+
+    /**
+     * Returns the id of the name at the given position of the segment, or -1 if it isn't one of the hash's names.
+     *
+     * @param fnv the FNV-1a hash of the name, starting from {@link #FNV_OFFSET}
+     */
+    public int lookup(long fnv, MemorySegment segment, long nameOffset, int nameLength) {
+        if (nameOffsets.length == 0) {
+            return -1;
+        }
+        long hash = mix(fnv);
+        int id = position(hash, seeds[bucket(hash, seeds.length)], nameOffsets.length);
+        int offset = nameOffsets[id];
+        if (nameLengths[id] != nameLength
+                || MemorySegment.mismatch(names, offset, offset + nameLength, segment, nameOffset, nameOffset + nameLength) != -1) {
+            return -1;
+        }
+        return id;
+    }
+
+    public int size() {
+        return nameOffsets.length;
+    }
+
+    public String name(int id) {
+        return decodedNames[id];
+    }
+
+    /**
+     * Returns all ids, ordered by name the way a {@code TreeMap<String, ?>} orders its keys.
+     */
+    public int[] sortedIds() {
+        return sortedIds.clone();
+    }
+
+    static long fnv(MemorySegment segment, long offset, int length) {
+        long h = FNV_OFFSET;
+        for (long i = offset; i < offset + length; i++) {
+            h = (h ^ (segment.get(JAVA_BYTE, i) & 0xFF)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static long mix(long h) {
+        // murmur3's 64-bit finalizer; FNV-1a alone leaves the high bits poorly distributed
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int bucket(long hash, int bucketCount) {
+        return (int) (((hash & 0xFFFFFFFFL) * bucketCount) >>> 32);
+    }
+
+    private static int position(long hash, int seed, int n) {
+        long h = mix(hash + seed * 0x9E3779B97F4A7C15L);
+        return (int) (((h >>> 32) * n) >>> 32);
+    }
+}
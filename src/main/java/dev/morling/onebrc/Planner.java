@@ -0,0 +1,218 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Chooses how to process an input from a sample of it, instead of using one thread per core and default table sizes
+ * regardless of the input: a 1 KB file doesn't need more than one thread, and a file with millions of distinct keys
+ * needs tables sized for them, or a different engine altogether.
+ * <p>
+ * The sample consists of {@code -Dplan.samples} (default 32) pages of {@code -Dplan.page} (default 64k) spread evenly
+ * across the file, or the whole file if it's smaller than that. From the complete lines of the sample, the average
+ * line length and thus the row count are estimated, and the number of distinct keys is estimated with a
+ * {@link HyperLogLog} and extrapolated to the whole file.
+ */
+public class Planner {
+
+    private static final int SAMPLES = Integer.getInteger("plan.samples", 32);
+    private static final long PAGE_SIZE = CalculateAverage_5.parseSize(System.getProperty("plan.page", "64k"));
+
+    private static final long MIN_BYTES_PER_THREAD = 4L << 20;
+    private static final long MIN_CHUNK_SIZE = 1L << 20;
+    private static final int CHUNKS_PER_THREAD = 4;
+    static final long SHARED_THRESHOLD = CalculateAverage_5.parseSize(System.getProperty("shared.threshold", "1m"));
+    // key bytes, slot arrays and the name segment of a table entry, roughly
+    private static final long BYTES_PER_TABLE_ENTRY = 128;
+
+    public enum Engine {
+        /** one {@link StationTable} per thread, merged at the end */
+        PRIVATE,
+        /** one {@link CalculateAverage_11.SharedTable} for all threads */
+        SHARED,
+        /** radix-partitioned with spilling, see {@link CalculateAverage_10} */
+        PARTITIONED
+    }
+
+    /**
+     * What the sample tells about the input.
+     */
+    public record Estimate(long bytes, long rows, double averageLineLength, long distinctKeys, boolean exact) {
+    }
+
+    public record Plan(Estimate estimate, Engine engine, int threads, long chunkSize, int tableCapacity) {
+
+        @Override
+        public String toString() {
+            return String.format("Plan: %s engine, %d thread(s), %,d byte chunks, table sized for %,d keys; from %s~%,d rows of %.1f bytes, ~%,d distinct keys",
+                    engine.name().toLowerCase(), threads, chunkSize, tableCapacity, estimate.exact() ? "" : "sample: ", estimate.rows(),
+                    estimate.averageLineLength(), estimate.distinctKeys());
+        }
+    }
+
+    private Planner() {
+    }
+
+    public static Plan plan(MemorySegment file) {
+        return plan(estimate(file), Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory());
+    }
+
+    static Plan plan(Estimate estimate, int processors, long maxMemory) {
+        int threads = Math.clamp(estimate.bytes() / MIN_BYTES_PER_THREAD, 1, processors);
+        long chunkSize = Math.max(MIN_CHUNK_SIZE, estimate.bytes() / ((long) threads * CHUNKS_PER_THREAD));
+        int tableCapacity = Math.clamp(estimate.distinctKeys() + estimate.distinctKeys() / 4, 16, 1 << 28);
+
+        long keyBytes = estimate.distinctKeys() * BYTES_PER_TABLE_ENTRY;
+        Engine engine;
+        if (keyBytes > maxMemory / 2) {
+            engine = Engine.PARTITIONED;
+        }
+        else if (estimate.distinctKeys() * threads > SHARED_THRESHOLD) {
+            engine = Engine.SHARED;
+        }
+        else {
+            engine = Engine.PRIVATE;
+        }
+        return new Plan(estimate, engine, threads, chunkSize, tableCapacity);
+    }
+
+    public static Estimate estimate(MemorySegment file) {
+        long size = file.byteSize();
+        boolean exact = size <= SAMPLES * PAGE_SIZE;
+        int pages = exact ? 1 : SAMPLES;
+        long pageSize = exact ? size : PAGE_SIZE;
+
+        HyperLogLog distinct = new HyperLogLog(14);
+        long sampledBytes = 0;
+        long sampledLines = 0;
+        for (int i = 0; i < pages; i++) {
+            long pos = size * i / pages;
+            while (pos > 0 && pos < size && file.get(JAVA_BYTE, pos - 1) != '\n') {
+                pos++;
+            }
+            long end = Math.min(size, pos + pageSize);
+            long lineStart = pos;
+            long nameEnd = -1;
+            for (; pos < end; pos++) {
+                byte b = file.get(JAVA_BYTE, pos);
+                if (b == ';' && nameEnd < 0) {
+                    nameEnd = pos;
+                }
+                else if (b == '\n') {
+                    if (nameEnd >= 0) {
+                        distinct.add(hash(file, lineStart, nameEnd));
+                    }
+                    sampledLines++;
+                    sampledBytes += pos + 1 - lineStart;
+                    lineStart = pos + 1;
+                    nameEnd = -1;
+                }
+            }
+        }
+
+        if (sampledLines == 0) {
+            return new Estimate(size, size > 0 ? 1 : 0, size, size > 0 ? 1 : 0, exact);
+        }
+        double averageLineLength = (double) sampledBytes / sampledLines;
+        long rows = exact ? sampledLines : (long) (size / averageLineLength);
+        long sampleDistinct = Math.min(distinct.estimate(), sampledLines);
+        long keys = exact ? sampleDistinct : extrapolateDistinct(sampleDistinct, sampledLines, rows);
+        return new Estimate(size, rows, averageLineLength, keys, exact);
+    }
+
+    /**
+     * Solves {@code d = K * (1 - e^(-n/K))} for {@code K}, the number of keys from which {@code n} rows drawn uniformly
+     * are expected to show {@code d} distinct ones, and returns how many of those {@code K} keys the total rows are
+     * expected to show.
+     */
+    static long extrapolateDistinct(long sampleDistinct, long sampleRows, long totalRows) {
+        if (sampleDistinct >= sampleRows) {
+            return totalRows;
+        }
+        double low = sampleDistinct;
+        double high = totalRows;
+        if (high * -Math.expm1(-sampleRows / high) <= sampleDistinct) {
+            return totalRows;
+        }
+        for (int i = 0; i < 64 && high - low > 0.5; i++) {
+            double mid = (low + high) / 2;
+            if (mid * -Math.expm1(-sampleRows / mid) < sampleDistinct) {
+                low = mid;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return Math.round(high * -Math.expm1(-totalRows / high));
+    }
+
+    private static long hash(MemorySegment segment, long from, long to) {
+        // FNV-1a, finished with the murmur3 mixer, as HyperLogLog needs all 64 bits to be well distributed
+        long h = 0xcbf29ce484222325L;
+        for (long i = from; i < to; i++) {
+            h = (h ^ (segment.get(JAVA_BYTE, i) & 0xFF)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Estimates the number of distinct 64-bit hashes added, with a relative standard error of about
+     * {@code 1.04 / sqrt(2^precision)}, in {@code 2^precision} bytes.
+     */
+    static class HyperLogLog {
+        private final int precision;
+        private final byte[] registers;
+
+        HyperLogLog(int precision) {
+            this.precision = precision;
+            this.registers = new byte[1 << precision];
+        }
+
+        void add(long hash) {
+            int index = (int) (hash >>> (64 - precision));
+            int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+            if (rank > registers[index]) {
+                registers[index] = (byte) rank;
+            }
+        }
+
+        long estimate() {
+            int m = registers.length;
+            double sum = 0;
+            int zeros = 0;
+            for (byte register : registers) {
+                sum += 1.0 / (1L << register);
+                if (register == 0) {
+                    zeros++;
+                }
+            }
+            double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+            if (estimate <= 2.5 * m && zeros > 0) {
+                // linear counting is more accurate for small cardinalities
+                estimate = m * Math.log((double) m / zeros);
+            }
+            return Math.round(estimate);
+        }
+    }
+}
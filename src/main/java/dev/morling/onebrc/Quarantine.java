@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Collects the malformed lines skipped in lenient mode, see
+ * {@link StationTable#addLines(MemorySegment, long, long, long, boolean, Quarantine)}. Each line is written as
+ * {@code <byte offset>\t<raw line>} to the quarantine file, if there is one; otherwise lines are only counted.
+ * Thread-safe, so one instance can be shared by all workers.
+ */
+public class Quarantine implements Closeable {
+
+    private final OutputStream out;
+    private long count;
+
+    private Quarantine(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Returns a quarantine which only counts malformed lines.
+     */
+    public static Quarantine counting() {
+        return new Quarantine(null);
+    }
+
+    /**
+     * Returns a quarantine which writes malformed lines to the given file, replacing any existing one.
+     */
+    public static Quarantine open(Path file) throws IOException {
+        return new Quarantine(new BufferedOutputStream(Files.newOutputStream(file)));
+    }
+
+    /**
+     * Records the line between {@code from} and {@code to} of the segment, the segment starting at {@code position} of
+     * the input.
+     */
+    public synchronized void add(long position, MemorySegment segment, long from, long to) {
+        count++;
+        if (out == null) {
+            return;
+        }
+        try {
+            out.write((position + from + "\t").getBytes(StandardCharsets.US_ASCII));
+            out.write(segment.asSlice(from, to - from).toArray(JAVA_BYTE));
+            out.write('\n');
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized long count() {
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Streams results row by row into a channel through one reused buffer, instead of building the whole output as one
+ * string first. The format is chosen with {@code -Doutput} and the target with {@code -Doutput.file} (default stdout):
+ * <ul>
+ * <li>{@code text} (default): {@code {Abha=-23.0/18.0/59.2, ...}}, as printed for a {@code TreeMap}</li>
+ * <li>{@code csv}: a {@code station,min,mean,max,count} header and one row per station, names quoted as per RFC 4180
+ * where needed</li>
+ * <li>{@code jsonl}: one JSON object per station and line, e.g.
+ * {@code {"station":"Abha","min":-23.0,"mean":18.0,"max":59.2,"count":1234}}</li>
+ * <li>{@code binary}: the magic {@code 1BRC}, a version byte (1) and the scale as a byte, then per station a little-endian
+ * unsigned {@code short} name length, the UTF-8 name and four little-endian {@code long}s: count, sum, min and max, as
+ * fixed-point values of the given scale; a name length of 0 ends the table, so that readers don't depend on the end of
+ * the stream. Names must therefore be 1 to 65535 bytes long</li>
+ * </ul>
+ * Rows are written in the order they're given. Not thread-safe.
+ */
+public class ResultWriter implements Closeable {
+
+    public enum Format {
+        TEXT,
+        CSV,
+        JSONL,
+        BINARY
+    }
+
+    private static final long[] POWERS_OF_TEN = { 1, 10, 100, 1_000, 10_000, 100_000, 1_000_000, 10_000_000, 100_000_000, 1_000_000_000,
+            10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L, 10_000_000_000_000L, 100_000_000_000_000L,
+            1_000_000_000_000_000L, 1_000_000_000_000_000_000L };
+
+    private final Format format;
+    private final WritableByteChannel channel;
+    private final boolean closeChannel;
+    private final Charset textCharset;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] digits = new byte[20];
+    private long rows;
+
+    private ResultWriter(Format format, WritableByteChannel channel, boolean closeChannel, Charset textCharset) {
+        this.format = format;
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+        this.textCharset = textCharset;
+    }
+
+    /**
+     * Returns a writer for the format and target given by {@code -Doutput} and {@code -Doutput.file}.
+     */
+    public static ResultWriter open() throws IOException {
+        Format format = format();
+        String file = System.getProperty("output.file");
+        if (file != null) {
+            return open(format, FileChannel.open(Path.of(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING),
+                    true, StandardCharsets.UTF_8);
+        }
+        // text goes to stdout in its charset, as println() would write it
+        return open(format, Channels.newChannel(System.out), false, System.out.charset());
+    }
+
+    /**
+     * Returns a writer for the given format into the given channel, which is closed along with the writer if
+     * {@code closeChannel} is set; names in the text format are encoded with the given charset, all other formats
+     * use UTF-8.
+     */
+    public static ResultWriter open(Format format, WritableByteChannel channel, boolean closeChannel, Charset textCharset) throws IOException {
+        ResultWriter writer = new ResultWriter(format, channel, closeChannel, textCharset);
+        writer.begin();
+        return writer;
+    }
+
+    /**
+     * Returns the format given by {@code -Doutput}.
+     */
+    public static Format format() {
+        return Format.valueOf(System.getProperty("output", "text").toUpperCase());
+    }
+
+    /**
+     * Writes all entries of the given map, e.g. a {@code TreeMap} of all stations or the result of a
+     * {@link StationQuery}, and closes the writer.
+     */
+    public static void writeAll(Map<String, StationTable.Stats> result) throws IOException {
+        try (ResultWriter writer = open()) {
+            for (Map.Entry<String, StationTable.Stats> entry : result.entrySet()) {
+                writer.write(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void begin() throws IOException {
+        switch (format) {
+            case TEXT -> put((byte) '{');
+            case CSV -> putAscii("station,min,mean,max,count\n");
+            case JSONL -> {
+            }
+            case BINARY -> {
+                putAscii("1BRC");
+                put((byte) 1);
+                put((byte) FixedPoint.DEFAULT_SCALE);
+            }
+        }
+    }
+
+    public void write(String station, StationTable.Stats stats) throws IOException {
+        long mean = Math.round((double) stats.sum() / stats.count());
+        switch (format) {
+            case TEXT -> {
+                if (rows > 0) {
+                    putAscii(", ");
+                }
+                put(station.getBytes(textCharset));
+                put((byte) '=');
+                putFixed(stats.min(), stats.scale());
+                put((byte) '/');
+                putFixed(mean, stats.scale());
+                put((byte) '/');
+                putFixed(stats.max(), stats.scale());
+            }
+            case CSV -> {
+                putCsv(station.getBytes(StandardCharsets.UTF_8));
+                put((byte) ',');
+                putFixed(stats.min(), stats.scale());
+                put((byte) ',');
+                putFixed(mean, stats.scale());
+                put((byte) ',');
+                putFixed(stats.max(), stats.scale());
+                put((byte) ',');
+                putFixed(stats.count(), 0);
+                put((byte) '\n');
+            }
+            case JSONL -> {
+                putAscii("{\"station\":");
+                putJson(station.getBytes(StandardCharsets.UTF_8));
+                putAscii(",\"min\":");
+                putFixed(stats.min(), stats.scale());
+                putAscii(",\"mean\":");
+                putFixed(mean, stats.scale());
+                putAscii(",\"max\":");
+                putFixed(stats.max(), stats.scale());
+                putAscii(",\"count\":");
+                putFixed(stats.count(), 0);
+                putAscii("}\n");
+            }
+            case BINARY -> {
+                if (stats.scale() != FixedPoint.DEFAULT_SCALE) {
+                    throw new IllegalArgumentException("Stats of scale " + stats.scale() + " can't be written to a table of scale " + FixedPoint.DEFAULT_SCALE);
+                }
+                byte[] name = station.getBytes(StandardCharsets.UTF_8);
+                if (name.length == 0 || name.length > 0xFFFF) {
+                    throw new IllegalArgumentException("Name of " + name.length + " bytes can't be written to a binary table, it takes 1 to 65535 bytes");
+                }
+                ensure(Short.BYTES);
+                buffer.putShort((short) name.length);
+                put(name);
+                ensure(4 * Long.BYTES);
+                buffer.putLong(stats.count());
+                buffer.putLong(stats.sum());
+                buffer.putLong(stats.min());
+                buffer.putLong(stats.max());
+            }
+        }
+        rows++;
+    }
+
+    /**
+     * Finishes the output and flushes it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (format == Format.TEXT) {
+            putAscii("}" + System.lineSeparator());
+        }
+        else if (format == Format.BINARY) {
+            ensure(Short.BYTES);
+            buffer.putShort((short) 0);
+        }
+        flush();
+        if (closeChannel) {
+            channel.close();
+        }
+    }
+
+    private void putCsv(byte[] name) throws IOException {
+        boolean quote = false;
+        for (byte b : name) {
+            if (b == ',' || b == '"' || b == '\n' || b == '\r') {
+                quote = true;
+                break;
+            }
+        }
+        if (!quote) {
+            put(name);
+            return;
+        }
+        put((byte) '"');
+        for (byte b : name) {
+            if (b == '"') {
+                put((byte) '"');
+            }
+            put(b);
+        }
+        put((byte) '"');
+    }
+
+    private void putJson(byte[] name) throws IOException {
+        put((byte) '"');
+        for (byte b : name) {
+            if (b == '"' || b == '\\') {
+                put((byte) '\\');
+                put(b);
+            }
+            else if (b >= 0 && b < 0x20) {
+                putAscii(String.format("\\u%04x", b));
+            }
+            else {
+                put(b);
+            }
+        }
+        put((byte) '"');
+    }
+
+    /**
+     * Writes the fixed-point value with exactly {@code scale} fractional digits, like {@code %.<scale>f} would.
+     */
+    private void putFixed(long value, int scale) throws IOException {
+        if (value < 0) {
+            put((byte) '-');
+            value = -value;
+        }
+        long unit = POWERS_OF_TEN[scale];
+        putDigits(value / unit, 1);
+        if (scale > 0) {
+            put((byte) '.');
+            putDigits(value % unit, scale);
+        }
+    }
+
+    private void putDigits(long value, int minDigits) throws IOException {
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (count < minDigits) {
+            digits[count++] = '0';
+        }
+        ensure(count);
+        for (int i = count - 1; i >= 0; i--) {
+            buffer.put(digits[i]);
+        }
+    }
+
+    private void putAscii(String s) throws IOException {
+        put(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        ensure(1);
+        buffer.put(b);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
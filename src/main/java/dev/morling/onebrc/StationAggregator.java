@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Aggregates measurement lines from in-memory buffers, for callers which already hold the data and shouldn't have to
+ * write it to a file first. Buffers don't need to be line-aligned: a line split across two {@code feed()} calls is
+ * kept back and completed by the next call, so only complete lines are ever aggregated. At the end of the input,
+ * {@link #finish()} also aggregates a last line without a final line break.
+ * <p>
+ * As the carried-over partial line belongs to the one input sequence being fed, an instance must only be fed by one
+ * thread; buffers fed from several threads would complete each other's lines. The methods are synchronized, so other
+ * threads may take snapshots while it is fed. For parallel ingestion, use one instance per thread and
+ * {@link #merge(StationAggregator)} them.
+ */
+public class StationAggregator {
+
+    private StationTable table = new StationTable();
+    private byte[] pending = new byte[128];
+    private int pendingLength;
+
+    /**
+     * Aggregates the complete lines of the given segment.
+     */
+    public synchronized void feed(MemorySegment segment) {
+        long offset = 0;
+        long size = segment.byteSize();
+
+        if (pendingLength > 0) {
+            long lineEnd = 0;
+            while (lineEnd < size && segment.get(JAVA_BYTE, lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == size) {
+                appendPending(segment, 0, size);
+                return;
+            }
+            appendPending(segment, 0, lineEnd + 1);
+            table.addLines(MemorySegment.ofArray(pending), 0, pendingLength);
+            pendingLength = 0;
+            offset = lineEnd + 1;
+        }
+
+        long end = table.addLines(segment, offset, size);
+        appendPending(segment, end, size);
+    }
+
+    /**
+     * Aggregates the complete lines between the buffer's position and limit, and moves its position to the limit.
+     */
+    public synchronized void feed(ByteBuffer buffer) {
+        feed(MemorySegment.ofBuffer(buffer));
+        buffer.position(buffer.limit());
+    }
+
+    /**
+     * Marks the end of the input: a pending last line, which didn't end with a line break, is aggregated now, like
+     * {@link StationTable#addLines(MemorySegment, long, long, long, boolean, Quarantine)} does with {@code endOfInput}.
+     * Further {@code feed()} calls start a new line.
+     */
+    public synchronized void finish() {
+        if (pendingLength > 0) {
+            appendPending(MemorySegment.ofArray(new byte[]{ '\n' }), 0, 1);
+            table.addLines(MemorySegment.ofArray(pending), 0, pendingLength);
+            pendingLength = 0;
+        }
+    }
+
+    /**
+     * Returns the stats of all lines aggregated so far, sorted by station name. A pending partial line isn't included,
+     * unless {@link #finish()} has been called.
+     */
+    public synchronized TreeMap<String, StationTable.Stats> snapshot() {
+        return table.toMap();
+    }
+
+    /**
+     * Adds everything the other aggregator has aggregated so far into this one; the other one isn't modified.
+     *
+     * @throws IllegalArgumentException if {@code other} is this aggregator, which would count every line twice
+     */
+    public void merge(StationAggregator other) {
+        if (other == this) {
+            throw new IllegalArgumentException("Can't merge an aggregator into itself");
+        }
+        // copy first, so that two aggregators merging each other concurrently can't deadlock
+        StationTable otherTable;
+        synchronized (other) {
+            otherTable = new StationTable(other.table.size());
+            otherTable.merge(other.table);
+        }
+        synchronized (this) {
+            table.merge(otherTable);
+        }
+    }
+
+    /**
+     * Discards all aggregated values and any pending partial line.
+     */
+    public synchronized void reset() {
+        table = new StationTable();
+        pendingLength = 0;
+    }
+
+    private void appendPending(MemorySegment segment, long from, long to) {
+        int length = (int) (to - from);
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+        }
+        MemorySegment.copy(segment, JAVA_BYTE, from, pending, pendingLength, length);
+        pendingLength += length;
+    }
+}
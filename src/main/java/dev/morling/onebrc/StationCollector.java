@@ -0,0 +1,62 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.stream.Collector;
+
+/**
+ * {@link Collector}s aggregating measurements into a {@link StationTable} per stream partition, merging the
+ * partitions' tables without boxing, and finishing with the per-station stats sorted by name. A drop-in replacement
+ * for {@code groupingBy(..., summarizingDouble(...))}:
+ *
+ * <pre>
+ * MeasurementSpliterator.stream(mappedFile, true).collect(StationCollector.lines());
+ * </pre>
+ */
+public final class StationCollector {
+
+    private StationCollector() {
+    }
+
+    /**
+     * Collects the lines of a {@link MeasurementSpliterator} stream.
+     */
+    public static Collector<MeasurementSpliterator.Line, StationTable, TreeMap<String, StationTable.Stats>> lines() {
+        return of((table, line) -> table.add(line.segment(), line.nameOffset(), line.nameLength(), line.value()));
+    }
+
+    /**
+     * Collects arbitrary elements, using the given function to add an element's name and value to the table, e.g. via
+     * {@link StationTable#add(byte[], long)} or {@link StationTable#add(java.lang.foreign.MemorySegment, long, int, long)}.
+     */
+    public static <T> Collector<T, StationTable, TreeMap<String, StationTable.Stats>> of(BiConsumer<StationTable, T> accumulator) {
+        return Collector.of(
+                StationTable::new,
+                accumulator,
+                (table1, table2) -> {
+                    if (table1.size() < table2.size()) {
+                        table2.merge(table1);
+                        return table2;
+                    }
+                    table1.merge(table2);
+                    return table1;
+                },
+                StationTable::toMap,
+                Collector.Characteristics.UNORDERED);
+    }
+}
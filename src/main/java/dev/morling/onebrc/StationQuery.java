@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SequencedMap;
+import java.util.TreeMap;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Selects the stations of interest from an aggregated {@link StationTable}, so that only those need to be decoded,
+ * sorted and printed. A query is given as comma-separated options, e.g. {@code top=20,by=mean,order=desc,where=max>40}:
+ * <ul>
+ * <li>{@code top}: only return the first n stations by the {@code by} statistic, using a heap bounded to n entries</li>
+ * <li>{@code by}: one of {@code min}, {@code max}, {@code mean}, {@code count}, {@code sum}, default {@code mean}</li>
+ * <li>{@code order}: {@code desc} (default) or {@code asc}</li>
+ * <li>{@code where}: a condition {@code <statistic><op><value>} with {@code op} one of {@code > >= < <= =}; may be
+ * repeated, all conditions must hold</li>
+ * </ul>
+ * Values are compared in their unit, e.g. degrees, not in fixed-point units. Without {@code top}, matching stations
+ * are returned sorted by name.
+ */
+public class StationQuery {
+
+    public enum Statistic {
+        MIN,
+        MAX,
+        MEAN,
+        COUNT,
+        SUM;
+
+        double of(StationTable table, int slot) {
+            return switch (this) {
+                case MIN -> FixedPoint.toDouble(table.min(slot), table.scale());
+                case MAX -> FixedPoint.toDouble(table.max(slot), table.scale());
+                case MEAN -> FixedPoint.toDouble(table.sum(slot), table.scale()) / table.count(slot);
+                case COUNT -> table.count(slot);
+                case SUM -> FixedPoint.toDouble(table.sum(slot), table.scale());
+            };
+        }
+    }
+
+    private record Condition(Statistic statistic, String operator, double value) {
+
+        boolean test(StationTable table, int slot) {
+            double actual = statistic.of(table, slot);
+            return switch (operator) {
+                case ">" -> actual > value;
+                case ">=" -> actual >= value;
+                case "<" -> actual < value;
+                case "<=" -> actual <= value;
+                default -> actual == value;
+            };
+        }
+    }
+
+    private final int top;
+    private final Statistic by;
+    private final boolean descending;
+    private final List<Condition> conditions;
+
+    private StationQuery(int top, Statistic by, boolean descending, List<Condition> conditions) {
+        this.top = top;
+        this.by = by;
+        this.descending = descending;
+        this.conditions = conditions;
+    }
+
+    public static StationQuery parse(String spec) {
+        int top = 0;
+        Statistic by = Statistic.MEAN;
+        boolean descending = true;
+        List<Condition> conditions = new ArrayList<>();
+
+        for (String option : spec.split(",")) {
+            String[] keyValue = option.trim().split("=", 2);
+            if (keyValue.length != 2) {
+                throw new IllegalArgumentException("Invalid query option: " + option);
+            }
+            String value = keyValue[1].trim();
+            switch (keyValue[0].trim()) {
+                case "top" -> top = Integer.parseInt(value);
+                case "by" -> by = Statistic.valueOf(value.toUpperCase());
+                case "order" -> descending = !value.equalsIgnoreCase("asc");
+                case "where" -> {
+                    int opStart = 0;
+                    while (opStart < value.length() && Character.isLetter(value.charAt(opStart))) {
+                        opStart++;
+                    }
+                    int opEnd = opStart;
+                    while (opEnd < value.length() && "<>=".indexOf(value.charAt(opEnd)) >= 0) {
+                        opEnd++;
+                    }
+                    String operator = value.substring(opStart, opEnd);
+                    if (opStart == 0 || !List.of(">", ">=", "<", "<=", "=").contains(operator)) {
+                        throw new IllegalArgumentException("Invalid condition: " + value);
+                    }
+                    conditions.add(new Condition(Statistic.valueOf(value.substring(0, opStart).toUpperCase()), operator,
+                            Double.parseDouble(value.substring(opEnd))));
+                }
+                default -> throw new IllegalArgumentException("Unknown query option: " + keyValue[0]);
+            }
+        }
+        return new StationQuery(top, by, descending, conditions);
+    }
+
+    /**
+     * Returns the matching stations, in query order.
+     */
+    public SequencedMap<String, StationTable.Stats> apply(StationTable table) {
+        if (top <= 0) {
+            TreeMap<String, StationTable.Stats> result = new TreeMap<>();
+            for (int slot = 0; slot < table.capacity(); slot++) {
+                if (table.occupied(slot) && matches(table, slot)) {
+                    result.put(table.decodeName(slot), table.stats(slot));
+                }
+            }
+            return result;
+        }
+
+        // ties are broken by name, so that the result doesn't depend on the table layout
+        Comparator<Integer> byValue = Comparator.comparingDouble(slot -> by.of(table, slot));
+        Comparator<Integer> order = (descending ? byValue.reversed() : byValue)
+                .thenComparing((slot1, slot2) -> compareNames(table.name(slot1), table.name(slot2)));
+
+        // the heap's head is the worst of the best n seen so far
+        PriorityQueue<Integer> heap = new PriorityQueue<>(top + 1, order.reversed());
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            if (!table.occupied(slot) || !matches(table, slot)) {
+                continue;
+            }
+            if (heap.size() < top) {
+                heap.add(slot);
+            }
+            else if (order.compare(slot, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(slot);
+            }
+        }
+
+        List<Integer> selected = new ArrayList<>(heap);
+        selected.sort(order);
+        LinkedHashMap<String, StationTable.Stats> result = new LinkedHashMap<>();
+        for (int slot : selected) {
+            result.put(table.decodeName(slot), table.stats(slot));
+        }
+        return result;
+    }
+
+    private boolean matches(StationTable table, int slot) {
+        for (Condition condition : conditions) {
+            if (!condition.test(table, slot)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares UTF-8 names byte-wise, which is the same order as comparing the decoded code points.
+     */
+    private static int compareNames(MemorySegment name1, MemorySegment name2) {
+        long mismatch = name1.mismatch(name2);
+        if (mismatch == -1) {
+            return 0;
+        }
+        if (mismatch == name1.byteSize() || mismatch == name2.byteSize()) {
+            return Long.compare(name1.byteSize(), name2.byteSize());
+        }
+        return Integer.compare(name1.get(JAVA_BYTE, mismatch) & 0xFF, name2.get(JAVA_BYTE, mismatch) & 0xFF);
+    }
+}
@@ -0,0 +1,578 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * An open-addressing hash table from station name bytes to min/max/sum/count, kept in primitive arrays, so adding a
+ * measurement doesn't allocate unless the station is seen for the first time. Names are copied into the table on
+ * first sight, so the input they're taken from may be reused afterwards. Not thread-safe; use one table per thread
+ * and {@link #merge(StationTable)} them.
+ * <p>
+ * Given a {@link GroupDictionary}, the table also keeps the group of each station, looked up when the station is first
+ * seen, so {@link #groupTotals()} can roll the stations up into their groups without any per-row work.
+ * <p>
+ * Names are hashed with a seed chosen at random per run ({@code -Dhash.seed} fixes it), so which names collide can't be
+ * predicted from the names alone. Probe lengths are watched on insertion: when a new name lands further than the probe
+ * limit ({@code -Dprobe.limit}, by default twice the log of the capacity, at least 16) from its home slot, the table is
+ * rebuilt with a new seed, up to {@value #MAX_RESEEDS} times. If chains still get that long, names beyond the limit are
+ * also kept in an overflow index, a {@link HashMap} whose colliding buckets become trees, so lookups stay logarithmic
+ * instead of scanning the chain.
+ */
+public class StationTable {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final long SEED = Long.getLong("hash.seed", ThreadLocalRandom.current().nextLong());
+    private static final int PROBE_LIMIT = Integer.getInteger("probe.limit", -1);
+    private static final int MAX_RESEEDS = 3;
+
+    private final int scale;
+    private final GroupDictionary groups;
+    private int mask;
+    private int size;
+    private MemorySegment[] names;
+    private int[] hashes;
+    private long[] sums;
+    private long[] counts;
+    private long[] mins;
+    private long[] maxs;
+    private int[] groupIds;
+    private long seed = SEED;
+    private int probeLimit;
+    private int reseeds;
+    private HashMap<Name, Integer> overflow;
+
+    public StationTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedStations number of distinct stations to size the table for; it grows when that's exceeded
+     */
+    public StationTable(int expectedStations) {
+        this(expectedStations, FixedPoint.DEFAULT_SCALE);
+    }
+
+    /**
+     * @param expectedStations number of distinct stations to size the table for; it grows when that's exceeded
+     * @param scale number of fractional digits of the fixed-point values
+     */
+    public StationTable(int expectedStations, int scale) {
+        this(expectedStations, scale, null);
+    }
+
+    /**
+     * @param expectedStations number of distinct stations to size the table for; it grows when that's exceeded
+     * @param scale number of fractional digits of the fixed-point values
+     * @param groups the dictionary to keep the group of each station from, or {@code null}
+     */
+    public StationTable(int expectedStations, int scale, GroupDictionary groups) {
+        this.scale = scale;
+        this.groups = groups;
+        allocate(Integer.highestOneBit(Math.max(16, expectedStations) * 2 - 1) * 2);
+    }
+
+    private void allocate(int capacity) {
+        mask = capacity - 1;
+        probeLimit = PROBE_LIMIT > 0 ? PROBE_LIMIT : Math.max(16, 2 * Integer.numberOfTrailingZeros(capacity));
+        size = 0;
+        names = new MemorySegment[capacity];
+        hashes = new int[capacity];
+        sums = new long[capacity];
+        counts = new long[capacity];
+        mins = new long[capacity];
+        maxs = new long[capacity];
+        groupIds = groups != null ? new int[capacity] : null;
+    }
+
+    public void add(byte[] name, long value) {
+        MemorySegment segment = MemorySegment.ofArray(name);
+        add(segment, 0, name.length, value);
+    }
+
+    /**
+     * Adds one measurement for the station whose UTF-8 name is at the given position of the segment.
+     */
+    public void add(MemorySegment segment, long nameOffset, int nameLength, long value) {
+        int slot = slot(segment, nameOffset, nameLength, hash(segment, nameOffset, nameLength, seed), -1);
+        sums[slot] += value;
+        counts[slot]++;
+        mins[slot] = Math.min(mins[slot], value);
+        maxs[slot] = Math.max(maxs[slot], value);
+    }
+
+    /**
+     * Adds all complete {@code <station>;<value>} lines within the given range of the segment. A trailing partial line
+     * is left to the caller, to be completed by the next piece of input; if there is none, use
+     * {@link #addLines(MemorySegment, long, long, boolean)} instead.
+     *
+     * @return the offset after the last complete line, i.e. where a trailing partial line starts, or {@code limit}
+     */
+    public long addLines(MemorySegment segment, long offset, long limit) {
+        long end = lastLineEnd(segment, offset, limit);
+        for (long cursor = offset; cursor < end;) {
+            long semicolonPos = cursor;
+            while (segment.get(JAVA_BYTE, semicolonPos) != ';') {
+                semicolonPos++;
+            }
+
+            long valueStart = semicolonPos + 1;
+            long value;
+            long lineEnd;
+            long packed = scale > 0 ? FixedPoint.parseShort(segment, valueStart) : FixedPoint.NO_SHORT_FORM;
+            if (packed != FixedPoint.NO_SHORT_FORM) {
+                value = FixedPoint.fromTenths(packed >> 8, scale);
+                lineEnd = valueStart + (packed & 0xFF);
+            }
+            else {
+                lineEnd = valueStart;
+                while (segment.get(JAVA_BYTE, lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                value = FixedPoint.parse(segment, valueStart, lineEnd, scale);
+            }
+
+            add(segment, cursor, (int) (semicolonPos - cursor), value);
+            cursor = lineEnd + 1;
+        }
+        return end;
+    }
+
+    /**
+     * Like {@link #addLines(MemorySegment, long, long)}, for callers whose range isn't continued by a next piece of
+     * input, e.g. the last range of a file: with {@code endOfRange}, a final line without line break is added as well.
+     *
+     * @return the offset after the last complete line, or {@code limit} if {@code endOfRange} is given
+     */
+    public long addLines(MemorySegment segment, long offset, long limit, boolean endOfRange) {
+        long end = addLines(segment, offset, limit);
+        if (endOfRange && end < limit) {
+            MemorySegment lastLine = terminated(segment, end, limit);
+            addLines(lastLine, 0, lastLine.byteSize());
+            return limit;
+        }
+        return end;
+    }
+
+    /**
+     * Like {@link #addLines(MemorySegment, long, long, boolean)}, but tolerates dirty input: {@code \r\n} line breaks and empty
+     * lines are accepted, and lines without a separator, with an empty station name or with a value which isn't a
+     * decimal number are passed to the quarantine instead of failing or being mis-parsed. The checks are part of the
+     * separator and line break scans, so clean lines take the same fast path as in strict mode.
+     *
+     * @param position the position of the segment's first byte within the input, used for reporting offsets
+     * @param endOfInput whether {@code limit} is the end of the input, in which case a final line without line break is
+     *            added as well
+     * @return the offset after the last complete line, or {@code limit} if {@code endOfInput} is given
+     */
+    public long addLines(MemorySegment segment, long offset, long limit, long position, boolean endOfInput, Quarantine quarantine) {
+        long end = lastLineEnd(segment, offset, limit);
+        addLinesLenient(segment, offset, end, position, quarantine);
+        if (endOfInput && end < limit) {
+            MemorySegment lastLine = terminated(segment, end, limit);
+            addLinesLenient(lastLine, 0, lastLine.byteSize(), position + end, quarantine);
+            return limit;
+        }
+        return end;
+    }
+
+    /**
+     * Returns a copy of the given final line, with the missing line break appended.
+     */
+    static MemorySegment terminated(MemorySegment segment, long from, long to) {
+        byte[] line = new byte[(int) (to - from) + 1];
+        MemorySegment.copy(segment, JAVA_BYTE, from, line, 0, line.length - 1);
+        line[line.length - 1] = '\n';
+        return MemorySegment.ofArray(line);
+    }
+
+    private void addLinesLenient(MemorySegment segment, long offset, long end, long position, Quarantine quarantine) {
+        for (long cursor = offset; cursor < end;) {
+            long semicolonPos = cursor;
+            byte b;
+            while ((b = segment.get(JAVA_BYTE, semicolonPos)) != ';' && b != '\n') {
+                semicolonPos++;
+            }
+            if (b == '\n') {
+                long contentEnd = semicolonPos > cursor && segment.get(JAVA_BYTE, semicolonPos - 1) == '\r' ? semicolonPos - 1 : semicolonPos;
+                if (contentEnd > cursor) {
+                    quarantine.add(position, segment, cursor, contentEnd);
+                }
+                cursor = semicolonPos + 1;
+                continue;
+            }
+
+            long valueStart = semicolonPos + 1;
+            long packed = scale > 0 ? FixedPoint.parseShort(segment, valueStart) : FixedPoint.NO_SHORT_FORM;
+            if (packed != FixedPoint.NO_SHORT_FORM && semicolonPos > cursor) {
+                add(segment, cursor, (int) (semicolonPos - cursor), FixedPoint.fromTenths(packed >> 8, scale));
+                cursor = valueStart + (packed & 0xFF) + 1;
+                continue;
+            }
+
+            long lineEnd = valueStart;
+            while (segment.get(JAVA_BYTE, lineEnd) != '\n') {
+                lineEnd++;
+            }
+            long valueEnd = lineEnd > valueStart && segment.get(JAVA_BYTE, lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            long value = 0;
+            boolean valid = semicolonPos > cursor;
+            if (valid) {
+                try {
+                    value = FixedPoint.parse(segment, valueStart, valueEnd, scale);
+                }
+                catch (NumberFormatException e) {
+                    valid = false;
+                }
+            }
+            if (valid) {
+                add(segment, cursor, (int) (semicolonPos - cursor), value);
+            }
+            else {
+                quarantine.add(position, segment, cursor, valueEnd);
+            }
+            cursor = lineEnd + 1;
+        }
+    }
+
+    private static long lastLineEnd(MemorySegment segment, long offset, long limit) {
+        for (long i = limit - 1; i >= offset; i--) {
+            if (segment.get(JAVA_BYTE, i) == '\n') {
+                return i + 1;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Adds the entries of the other table into this one.
+     */
+    public void merge(StationTable other) {
+        if (other.scale != scale) {
+            throw new IllegalArgumentException("Can't merge a table with scale " + other.scale + " into one with scale " + scale);
+        }
+        for (int i = 0; i < other.names.length; i++) {
+            MemorySegment name = other.names[i];
+            if (name != null) {
+                int hash = other.seed == seed ? other.hashes[i] : hash(name, 0, (int) name.byteSize(), seed);
+                int slot = slot(name, 0, (int) name.byteSize(), hash, other.groups == groups && groups != null ? other.groupIds[i] : -1);
+                sums[slot] += other.sums[i];
+                counts[slot] += other.counts[i];
+                mins[slot] = Math.min(mins[slot], other.mins[i]);
+                maxs[slot] = Math.max(maxs[slot], other.maxs[i]);
+            }
+        }
+    }
+
+    /**
+     * Adds already aggregated stats for the given name, e.g. to roll stations up into groups.
+     */
+    public void add(MemorySegment segment, long nameOffset, int nameLength, Stats stats) {
+        int slot = slot(segment, nameOffset, nameLength, hash(segment, nameOffset, nameLength, seed), -1);
+        sums[slot] += stats.sum();
+        counts[slot] += stats.count();
+        mins[slot] = Math.min(mins[slot], stats.min());
+        maxs[slot] = Math.max(maxs[slot], stats.max());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int scale() {
+        return scale;
+    }
+
+    /**
+     * Returns the stats of all stations, sorted by name.
+     */
+    public TreeMap<String, Stats> toMap() {
+        TreeMap<String, Stats> result = new TreeMap<>();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                result.put(decodeName(i), stats(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the stats of all groups with at least one station in this table, sorted by group name.
+     *
+     * @throws IllegalStateException if the table wasn't created with a {@link GroupDictionary}
+     */
+    public TreeMap<String, Stats> groupTotals() {
+        if (groups == null) {
+            throw new IllegalStateException("Table has no group dictionary");
+        }
+        int groupCount = groups.groupCount();
+        long[] groupCounts = new long[groupCount];
+        long[] groupSums = new long[groupCount];
+        long[] groupMins = new long[groupCount];
+        long[] groupMaxs = new long[groupCount];
+        Arrays.fill(groupMins, Long.MAX_VALUE);
+        Arrays.fill(groupMaxs, Long.MIN_VALUE);
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                int group = groupIds[i];
+                groupCounts[group] += counts[i];
+                groupSums[group] += sums[i];
+                groupMins[group] = Math.min(groupMins[group], mins[i]);
+                groupMaxs[group] = Math.max(groupMaxs[group], maxs[i]);
+            }
+        }
+
+        TreeMap<String, Stats> result = new TreeMap<>();
+        for (int group = 0; group < groupCount; group++) {
+            if (groupCounts[group] > 0) {
+                result.put(groups.groupName(group), new Stats(groupCounts[group], groupSums[group], groupMins[group], groupMaxs[group], scale));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the stats over all stations, or {@code null} if the table is empty.
+     */
+    public Stats total() {
+        long count = 0;
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                count += counts[i];
+                sum += sums[i];
+                min = Math.min(min, mins[i]);
+                max = Math.max(max, maxs[i]);
+            }
+        }
+        return count > 0 ? new Stats(count, sum, min, max, scale) : null;
+    }
+
+    int capacity() {
+        return names.length;
+    }
+
+    boolean occupied(int slot) {
+        return names[slot] != null;
+    }
+
+    MemorySegment name(int slot) {
+        return names[slot];
+    }
+
+    String decodeName(int slot) {
+        return new String(names[slot].toArray(JAVA_BYTE), StandardCharsets.UTF_8);
+    }
+
+    long count(int slot) {
+        return counts[slot];
+    }
+
+    long sum(int slot) {
+        return sums[slot];
+    }
+
+    long min(int slot) {
+        return mins[slot];
+    }
+
+    long max(int slot) {
+        return maxs[slot];
+    }
+
+    Stats stats(int slot) {
+        return new Stats(counts[slot], sums[slot], mins[slot], maxs[slot], scale);
+    }
+
+    /**
+     * Returns the slot of the given name, inserting it if needed.
+     *
+     * @param groupId the group of the name if already known, otherwise -1 to look it up if it's inserted
+     */
+    private int slot(MemorySegment segment, long nameOffset, int nameLength, int hash, int groupId) {
+        int slot = hash & mask;
+        for (int probes = 0;; probes++) {
+            if (probes == probeLimit && overflow != null) {
+                // all names this far from their home slot are in the overflow index, so only look for a free slot from here on
+                Integer found = overflow.get(new Name(segment.asSlice(nameOffset, nameLength).toArray(JAVA_BYTE)));
+                if (found != null) {
+                    return found;
+                }
+            }
+            MemorySegment name = names[slot];
+            if (name == null) {
+                if (size + 1 > (mask + 1) / 2) {
+                    rebuild(names.length * 2, false);
+                    return slot(segment, nameOffset, nameLength, hash, groupId);
+                }
+                if (probes >= probeLimit && overflow == null) {
+                    if (reseeds < MAX_RESEEDS) {
+                        reseeds++;
+                        seed = ThreadLocalRandom.current().nextLong();
+                        rebuild(names.length, true);
+                        return slot(segment, nameOffset, nameLength, hash(segment, nameOffset, nameLength, seed), groupId);
+                    }
+                    overflow = new HashMap<>();
+                    indexOverflow();
+                }
+                names[slot] = MemorySegment.ofArray(segment.asSlice(nameOffset, nameLength).toArray(JAVA_BYTE));
+                hashes[slot] = hash;
+                mins[slot] = Long.MAX_VALUE;
+                maxs[slot] = Long.MIN_VALUE;
+                if (groups != null) {
+                    groupIds[slot] = groupId >= 0 ? groupId : groups.groupOf(names[slot]);
+                }
+                if (probes >= probeLimit) {
+                    overflow.put(new Name(names[slot].toArray(JAVA_BYTE)), slot);
+                }
+                size++;
+                return slot;
+            }
+            if ((probes < probeLimit || overflow == null) && hashes[slot] == hash && name.byteSize() == nameLength
+                    && MemorySegment.mismatch(name, 0, nameLength, segment, nameOffset, nameOffset + nameLength) == -1) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Moves all entries into new arrays of the given capacity, with their hashes recomputed for the current seed if
+     * {@code rehash} is set.
+     */
+    private void rebuild(int capacity, boolean rehash) {
+        MemorySegment[] oldNames = names;
+        int[] oldHashes = hashes;
+        long[] oldSums = sums;
+        long[] oldCounts = counts;
+        long[] oldMins = mins;
+        long[] oldMaxs = maxs;
+        int[] oldGroupIds = groupIds;
+
+        allocate(capacity);
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) {
+                int hash = rehash ? hash(oldNames[i], 0, (int) oldNames[i].byteSize(), seed) : oldHashes[i];
+                int slot = hash & mask;
+                while (names[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                names[slot] = oldNames[i];
+                hashes[slot] = hash;
+                sums[slot] = oldSums[i];
+                counts[slot] = oldCounts[i];
+                mins[slot] = oldMins[i];
+                maxs[slot] = oldMaxs[i];
+                if (groups != null) {
+                    groupIds[slot] = oldGroupIds[i];
+                }
+                size++;
+            }
+        }
+        if (overflow != null) {
+            indexOverflow();
+        }
+    }
+
+    /**
+     * Puts all names at least the probe limit away from their home slot into the overflow index.
+     */
+    private void indexOverflow() {
+        overflow.clear();
+        for (int slot = 0; slot < names.length; slot++) {
+            if (names[slot] != null && ((slot - hashes[slot]) & mask) >= probeLimit) {
+                overflow.put(new Name(names[slot].toArray(JAVA_BYTE)), slot);
+            }
+        }
+    }
+
+    /**
+     * Returns how often the table was rebuilt with a new seed because of a long probe chain.
+     */
+    int reseeds() {
+        return reseeds;
+    }
+
+    /**
+     * Returns the number of names in the overflow index.
+     */
+    int overflowSize() {
+        return overflow != null ? overflow.size() : 0;
+    }
+
+    static int hash(MemorySegment segment, long offset, int length) {
+        return hash(segment, offset, length, SEED);
+    }
+
+    static int hash(MemorySegment segment, long offset, int length, long seed) {
+        // FNV-1a, starting from the seed instead of the fixed offset basis
+        long h = seed;
+        for (long off = offset; off < offset + length; off++) {
+            h = (h ^ (segment.get(JAVA_BYTE, off) & 0xFF)) * 0x100000001b3L;
+        }
+        // the low bits of FNV only depend on the low bits of the input, but the slot is taken from them
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * A name in the overflow index; comparable, so that {@link HashMap} can keep colliding names in a tree.
+     */
+    private record Name(byte[] bytes) implements Comparable<Name> {
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Name other && Arrays.equals(bytes, other.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int compareTo(Name other) {
+            return Arrays.compareUnsigned(bytes, other.bytes);
+        }
+    }
+
+    /**
+     * The aggregated measurements of one station, with fixed-point values of the given scale.
+     */
+    public record Stats(long count, long sum, long min, long max, int scale) {
+
+        public double mean() {
+            return FixedPoint.toDouble(Math.round((double) sum / count), scale);
+        }
+
+        @Override
+        public String toString() {
+            String format = "%." + scale + "f";
+            return String.format(format + "/" + format + "/" + format, FixedPoint.toDouble(min, scale), mean(), FixedPoint.toDouble(max, scale));
+        }
+    }
+}
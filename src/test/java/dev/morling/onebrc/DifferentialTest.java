@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs every engine on randomly generated files and compares the result with the baseline's. The files are generated
+ * from fixed seeds, plus {@code -Ddifferential.seed} if given, so failures can be reproduced; they mix single-byte and
+ * multibyte names of up to 100 bytes, station counts up to 10,000 and few rows per station, so that many means end in 5.
+ * Files of odd seeds end without line break after the last row.
+ */
+class DifferentialTest {
+
+    private static final String[] ALPHABETS = { "abcdefghijklmnopqrstuvwxyz", "ABCDEFGHIJKLMNOPQRSTUVWXYZ -'.()", "äöüßéèçñøåœ",
+            "東京大阪北京", "ÆΩЖЩज़ক", "🌍🌡️" };
+
+    @TempDir
+    static Path dir;
+
+    private static final Map<Long, Path> files = new HashMap<>();
+    private static final Map<Long, String> baselineOutputs = new HashMap<>();
+
+    static Stream<Arguments> enginesAndSeeds() {
+        LongStream seeds = LongStream.rangeClosed(1, 6);
+        Long extra = Long.getLong("differential.seed");
+        if (extra != null) {
+            seeds = LongStream.concat(seeds, LongStream.of(extra));
+        }
+        List<Long> seedList = seeds.boxed().toList();
+        return Engines.EXACT.stream()
+                .filter(engine -> !engine.equals("baseline"))
+                .flatMap(engine -> seedList.stream().map(seed -> Arguments.of(engine, seed)));
+    }
+
+    @ParameterizedTest(name = "{0} with seed {1}")
+    @MethodSource("enginesAndSeeds")
+    void matchesBaseline(String engine, long seed) throws Exception {
+        Path input = file(seed);
+
+        assertThat(Engines.run(engine, input).output()).isEqualTo(baselineOutput(seed));
+    }
+
+    private static synchronized Path file(long seed) throws Exception {
+        Path file = files.get(seed);
+        if (file == null) {
+            file = dir.resolve("measurements-" + seed + ".txt");
+            generate(file, new Random(seed), seed % 2 == 0);
+            files.put(seed, file);
+        }
+        return file;
+    }
+
+    private static synchronized String baselineOutput(long seed) throws Exception {
+        String output = baselineOutputs.get(seed);
+        if (output == null) {
+            output = Engines.run("baseline", file(seed)).output();
+            baselineOutputs.put(seed, output);
+        }
+        return output;
+    }
+
+    private static void generate(Path file, Random random, boolean finalLineBreak) throws Exception {
+        int stationCount = switch (random.nextInt(4)) {
+            case 0 -> 1 + random.nextInt(10);
+            case 1 -> 1 + random.nextInt(500);
+            default -> 1 + random.nextInt(10_000);
+        };
+        Set<String> names = new LinkedHashSet<>();
+        while (names.size() < stationCount) {
+            names.add(name(random));
+        }
+        List<String> stations = new ArrayList<>(names);
+        int rows = stationCount * (1 + random.nextInt(5));
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < rows; i++) {
+                // every station at least once, then random ones
+                String station = i < stationCount ? stations.get(i) : stations.get(random.nextInt(stationCount));
+                int tenths = random.nextInt(1999) - 999;
+                writer.write(station);
+                writer.write(';');
+                writer.write((tenths < 0 ? "-" : "") + Math.abs(tenths) / 10 + "." + Math.abs(tenths) % 10);
+                if (i < rows - 1 || finalLineBreak) {
+                    writer.write('\n');
+                }
+            }
+        }
+    }
+
+    private static String name(Random random) {
+        String alphabet = ALPHABETS[random.nextInt(ALPHABETS.length)];
+        int maxBytes = 1 + random.nextInt(random.nextBoolean() ? 16 : 100);
+        StringBuilder name = new StringBuilder();
+        while (true) {
+            int codePoint = alphabet.codePointAt(alphabet.offsetByCodePoints(0, random.nextInt(alphabet.codePointCount(0, alphabet.length()))));
+            String next = name + Character.toString(codePoint);
+            if (next.getBytes(StandardCharsets.UTF_8).length > maxBytes) {
+                break;
+            }
+            name.setLength(0);
+            name.append(next);
+        }
+        // a name can't be empty
+        return name.isEmpty() ? "x" : name.toString();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The common entry point of the tests: runs an engine in-process through its {@code main()} method, with the input file
+ * as the first argument, and returns what it printed, without the timing line.
+ */
+final class Engines {
+
+    /**
+     * All engines which print the exact result in the standard format, i.e. not 7 (reads from TCP), 13 (approximate)
+     * and 14 (labels its output per query).
+     */
+    static final List<String> EXACT = List.of("baseline", "1", "2", "3", "4", "5", "6", "8", "9", "10", "11", "12", "15", "16");
+
+    static final Path SAMPLES = Path.of("src/test/resources/samples");
+
+    static {
+        // CalculateAverage_15 needs a dictionary; it gets every other station of the samples, so that both its
+        // dictionary and its fallback path are covered
+        try {
+            TreeSet<String> stations = new TreeSet<>();
+            for (Path sample : samples()) {
+                for (String line : Files.readAllLines(sample, StandardCharsets.UTF_8)) {
+                    stations.add(line.substring(0, line.indexOf(';')));
+                }
+            }
+            Path dictionary = Files.createTempFile("dictionary", ".txt");
+            dictionary.toFile().deleteOnExit();
+            List<String> names = List.copyOf(stations);
+            Files.write(dictionary, Stream.iterate(0, i -> i < names.size(), i -> i + 2).map(names::get).toList(), StandardCharsets.UTF_8);
+            System.setProperty("dictionary", dictionary.toString());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    record Run(String output, long nanos) {
+    }
+
+    private Engines() {
+    }
+
+    /**
+     * Runs the engine, e.g. {@code "baseline"} or {@code "5"}, on the input. Synchronized, as the output is captured by
+     * replacing {@code System.out}.
+     */
+    static synchronized Run run(String engine, Path input) throws Exception {
+        var main = Class.forName("dev.morling.onebrc.CalculateAverage_" + engine).getMethod("main", String[].class);
+        PrintStream out = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        try {
+            main.invoke(null, (Object) new String[]{ input.toString() });
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+        finally {
+            System.setOut(out);
+        }
+        long nanos = System.nanoTime() - start;
+        String output = captured.toString(StandardCharsets.UTF_8).lines()
+                .filter(line -> !line.startsWith("Solution completed in"))
+                .collect(Collectors.joining("\n"));
+        return new Run(output, nanos);
+    }
+
+    static List<Path> samples() throws IOException {
+        try (Stream<Path> files = Files.list(SAMPLES)) {
+            return files.filter(f -> f.toString().endsWith(".txt")).sorted().toList();
+        }
+    }
+
+    static String expectedOutput(Path sample) throws IOException {
+        return Files.readString(Path.of(sample.toString().replaceFirst("\\.txt$", ".out")), StandardCharsets.UTF_8).strip();
+    }
+}
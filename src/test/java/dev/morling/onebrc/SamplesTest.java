@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs every engine on every sample and compares the result with the sample's {@code .out} file.
+ */
+class SamplesTest {
+
+    static Stream<Arguments> enginesAndSamples() throws Exception {
+        var samples = Engines.samples();
+        return Engines.EXACT.stream().flatMap(engine -> samples.stream().map(sample -> Arguments.of(engine, sample.getFileName().toString())));
+    }
+
+    @ParameterizedTest(name = "{0} on {1}")
+    @MethodSource("enginesAndSamples")
+    void matchesExpectedOutput(String engine, String sample) throws Exception {
+        Path input = Engines.SAMPLES.resolve(sample);
+
+        assertThat(Engines.run(engine, input).output()).isEqualTo(Engines.expectedOutput(input));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs every engine on every sample, repeated up to at least {@code -Dthroughput.rows} rows (default 200,000), which
+ * leaves the expected output unchanged, and checks both the output and that the best of a few runs reaches the rows per
+ * second floor in {@code throughput-floors.properties}. The floors are scaled with {@code -Dthroughput.factor}
+ * for slower or faster machines. It defaults to 0, i.e. no floors, as wall-clock floors are flaky on shared machines;
+ * the {@code throughput} profile ({@code mvn test -Pthroughput}) sets it to 1 for dedicated benchmark runs.
+ */
+class ThroughputTest {
+
+    private static final int ROWS = Integer.getInteger("throughput.rows", 200_000);
+    private static final double FACTOR = Double.parseDouble(System.getProperty("throughput.factor", "0"));
+    private static final int RUNS = 3;
+    private static final Properties FLOORS = new Properties();
+
+    static {
+        try (InputStream in = ThroughputTest.class.getResourceAsStream("/throughput-floors.properties")) {
+            FLOORS.load(in);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @TempDir
+    static Path dir;
+
+    private static final Map<String, Path> scaledSamples = new HashMap<>();
+
+    static Stream<Arguments> enginesAndSamples() throws Exception {
+        var samples = Engines.samples();
+        return Engines.EXACT.stream().flatMap(engine -> samples.stream().map(sample -> Arguments.of(engine, sample.getFileName().toString())));
+    }
+
+    @ParameterizedTest(name = "{0} on {1}")
+    @MethodSource("enginesAndSamples")
+    void reachesFloor(String engine, String sample) throws Exception {
+        Path input = scaled(sample);
+        long rows;
+        try (Stream<String> lines = Files.lines(input, StandardCharsets.UTF_8)) {
+            rows = lines.count();
+        }
+        String expected = Engines.expectedOutput(Engines.SAMPLES.resolve(sample));
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            Engines.Run run = Engines.run(engine, input);
+            assertThat(run.output()).isEqualTo(expected);
+            best = Math.min(best, run.nanos());
+        }
+
+        double rowsPerSecond = rows * 1e9 / best;
+        assertThat(rowsPerSecond).as("rows per second of %s on %s", engine, sample).isGreaterThanOrEqualTo(floor(engine, sample) * FACTOR);
+    }
+
+    /**
+     * Returns the floor of the engine on the sample, given as {@code <engine>.<sample>}, {@code <engine>} or
+     * {@code default}, in this order.
+     */
+    private static double floor(String engine, String sample) {
+        String name = sample.replaceFirst("\\.txt$", "");
+        String floor = FLOORS.getProperty(engine + "." + name, FLOORS.getProperty(engine, FLOORS.getProperty("default")));
+        return Double.parseDouble(floor);
+    }
+
+    /**
+     * Returns the sample repeated as often as needed to reach {@link #ROWS} rows; as every row occurs the same number of
+     * times, min, mean and max stay the same.
+     */
+    private static synchronized Path scaled(String sample) throws IOException {
+        Path scaled = scaledSamples.get(sample);
+        if (scaled == null) {
+            List<String> lines = Files.readAllLines(Engines.SAMPLES.resolve(sample), StandardCharsets.UTF_8);
+            int copies = (ROWS + lines.size() - 1) / lines.size();
+            scaled = dir.resolve(sample);
+            try (BufferedWriter writer = Files.newBufferedWriter(scaled, StandardCharsets.UTF_8)) {
+                for (int i = 0; i < copies; i++) {
+                    for (String line : lines) {
+                        writer.write(line);
+                        writer.write('\n');
+                    }
+                }
+            }
+            scaledSamples.put(sample, scaled);
+        }
+        return scaled;
+    }
+}